@@ -0,0 +1,79 @@
+package ai.fma.mpi_yarn.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ai.fma.mpi_yarn.RankPlacement;
+
+/**
+ * Ordering the acquired containers and building the mpiexec -hosts list.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HostListBenchmark {
+	@Param({ "16", "256", "2048" })
+	int numHosts;
+
+	@Param({ "1", "8" })
+	int containersPerHost;
+
+	@Param({ "PACKED", "RACK", "ROUNDROBIN" })
+	RankPlacement.Policy policy;
+
+	RankPlacement placement;
+	LinkedHashMap<String, ArrayList<Container>> hostContainers = new LinkedHashMap<String, ArrayList<Container>>();
+
+	@Setup
+	public void setup() {
+		placement = new RankPlacement(policy, new Configuration());
+		ApplicationAttemptId attempt = ApplicationAttemptId.newInstance(ApplicationId.newInstance(0, 1), 1);
+		Resource capability = Resource.newInstance(1024, 1);
+		long id = 1;
+		for (int h = 0; h < numHosts; h++) {
+			// address literals: the rack mapping normalizes every name through
+			// the resolver, and made up host names would time out in DNS
+			String host = "10.0." + (h / 256) + "." + (h % 256);
+			ArrayList<Container> group = new ArrayList<Container>();
+			for (int c = 0; c < containersPerHost; c++) {
+				group.add(Container.newInstance(ContainerId.newContainerId(attempt, id++),
+						NodeId.newInstance(host, 8041), host + ":8042", capability, Priority.newInstance(1), null));
+			}
+			hostContainers.put(host, group);
+		}
+		// warm the rack cache, the AM orders the hosts of a job once
+		placement.order(hostContainers);
+	}
+
+	@Benchmark
+	public String hostList() {
+		StringBuilder hostSb = new StringBuilder();
+		for (Container container : placement.order(hostContainers)) {
+			if (hostSb.length() > 0) {
+				hostSb.append(",");
+			}
+			hostSb.append(container.getNodeId().getHost());
+		}
+		return hostSb.toString();
+	}
+}
@@ -0,0 +1,306 @@
+package ai.fma.mpi_yarn.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.YarnApplicationState;
+import org.apache.hadoop.yarn.client.api.YarnClient;
+import org.apache.hadoop.yarn.exceptions.ApplicationNotFoundException;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.server.MiniYARNCluster;
+import org.apache.hadoop.yarn.util.ConverterUtils;
+
+import ai.fma.mpi_yarn.Client;
+
+/**
+ * End-to-end launch latency of Client against an in-process MiniDFSCluster
+ * and MiniYARNCluster. Stub hydra binaries stand in for MPI: the stub
+ * mpiexec prints one launch line per host, waits until every stub proxy has
+ * started and prints a wall clock stamp.
+ *
+ * Phases of a run, all observed by the client:
+ *
+ *   staging   upload of the artifacts, as logged by the client
+ *   amStart   submission until the application is RUNNING (AM registered)
+ *   alloc     RUNNING until the acquired node list is relayed
+ *   launch    node list until the stub mpiexec has seen every proxy
+ *   relay     stamp of the stub mpiexec until the client prints it
+ *   total     Client.run, including its final wait for the output file
+ *
+ * All NodeManagers of a MiniYARNCluster share one host name, so GROUP runs
+ * use a single group of -ppn ranks.
+ *
+ * System properties: bench.ranks (1,4,16), bench.runs (3),
+ * bench.nodemanagers (2), bench.jar
+ * (target/mpi-yarn-1.0.0-jar-with-dependencies.jar).
+ */
+public class LaunchBenchmark {
+	static String[] PHASES = { "staging", "amStart", "alloc", "launch", "relay", "total" };
+
+	/** records when the markers of a run pass through System.out */
+	static class MarkerStream extends OutputStream {
+		static Pattern STAGED = Pattern.compile("\\[CLIENT\\] staged \\d+ artifacts in (\\d+)ms");
+		static Pattern SUBMITTED = Pattern.compile("submitting application (\\S+)");
+		static Pattern RELAY = Pattern.compile("BENCH_RELAY (\\d+)");
+
+		PrintStream echo;
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		YarnClient yarnClient;
+		long startNanos = System.nanoTime();
+		LinkedHashMap<String, Long> phases = new LinkedHashMap<String, Long>();
+		// nanoTime of the phase boundaries, guarded by this
+		long submitted = -1;
+		long running = -1;
+		long allocated = -1;
+		long launched = -1;
+
+		MarkerStream(PrintStream echo, YarnClient yarnClient) {
+			this.echo = echo;
+			this.yarnClient = yarnClient;
+		}
+
+		public synchronized void write(int b) throws IOException {
+			echo.write(b);
+			if (b != '\n') {
+				line.write(b);
+				return;
+			}
+			onLine(new String(line.toByteArray(), StandardCharsets.UTF_8), System.nanoTime());
+			line.reset();
+		}
+
+		private void onLine(String text, long now) {
+			Matcher m;
+			if ((m = STAGED.matcher(text)).find()) {
+				phases.put("staging", Long.valueOf(m.group(1)));
+			} else if ((m = SUBMITTED.matcher(text)).find() && submitted < 0) {
+				submitted = now;
+				watchRunning(ConverterUtils.toApplicationId(m.group(1)));
+			} else if (text.contains("acquired node list") && allocated < 0) {
+				allocated = now;
+			} else if (text.contains("BENCH_PROXIES_STARTED") && launched < 0) {
+				launched = now;
+			} else if ((m = RELAY.matcher(text)).find()) {
+				phases.put("relay", System.currentTimeMillis() - Long.valueOf(m.group(1)));
+			}
+		}
+
+		// the RM reports RUNNING once the AM registered
+		private void watchRunning(final ApplicationId appId) {
+			Thread watcher = new Thread("bench-watch") {
+				public void run() {
+					try {
+						while (true) {
+							YarnApplicationState state;
+							try {
+								state = yarnClient.getApplicationReport(appId).getYarnApplicationState();
+							} catch (ApplicationNotFoundException e) {
+								// the marker is printed just before the submission reaches the RM
+								Thread.sleep(5);
+								continue;
+							}
+							if (state == YarnApplicationState.RUNNING) {
+								synchronized (MarkerStream.this) {
+									running = System.nanoTime();
+								}
+								return;
+							}
+							if (state == YarnApplicationState.FINISHED || state == YarnApplicationState.FAILED
+									|| state == YarnApplicationState.KILLED) {
+								return;
+							}
+							Thread.sleep(5);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+
+		private static long ms(long from, long to) {
+			return from < 0 || to < 0 ? -1 : (to - from) / 1000000;
+		}
+
+		synchronized Map<String, Long> finish() {
+			phases.put("amStart", ms(submitted, running));
+			phases.put("alloc", ms(running, allocated));
+			phases.put("launch", ms(allocated, launched));
+			phases.put("total", ms(startNanos, System.nanoTime()));
+			return phases;
+		}
+	}
+
+	private static File script(File dir, String name, String body) throws IOException {
+		File file = new File(dir, name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(("#!/bin/bash\n" + body).getBytes(StandardCharsets.UTF_8));
+		} finally {
+			out.close();
+		}
+		file.setExecutable(true);
+		return file;
+	}
+
+	// the proxies run on the same machine, they check in through a local directory
+	private static File stubHydra(File dir) throws IOException {
+		File hydra = new File(dir, "hydra");
+		hydra.mkdirs();
+		script(hydra, "mpiexec.hydra",
+				"while [ $# -gt 0 ]; do case \"$1\" in -hosts) HOSTS=\"$2\"; shift;; esac; shift; done\n"
+						+ "CHECKIN=" + dir.getAbsolutePath() + "/checkin.$$\n"
+						+ "mkdir -p $CHECKIN\n"
+						+ "I=0\n"
+						+ "for H in ${HOSTS//,/ }; do echo \"HYDRA_LAUNCH: hydra_pmi_proxy $CHECKIN $I\"; I=$((I+1)); done\n"
+						+ "echo HYDRA_LAUNCH_END\n"
+						+ "while [ $(ls $CHECKIN | wc -l) -lt $I ]; do sleep 0.005; done\n"
+						+ "echo BENCH_PROXIES_STARTED\n"
+						+ "echo BENCH_RELAY $(date +%s%3N)\n"
+						+ "rm -rf $CHECKIN\n");
+		script(hydra, "hydra_pmi_proxy", "touch \"$1/$2\"\n");
+		return hydra;
+	}
+
+	private static Map<String, Long> runOnce(Configuration conf, YarnClient yarnClient, String[] args)
+			throws Exception {
+		PrintStream stdout = System.out;
+		MarkerStream markers = new MarkerStream(stdout, yarnClient);
+		System.setOut(new PrintStream(markers, true));
+		try {
+			new Client(conf).run(args);
+		} finally {
+			System.setOut(stdout);
+		}
+		return markers.finish();
+	}
+
+	private static long median(List<Long> values) {
+		ArrayList<Long> sorted = new ArrayList<Long>(values);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size() / 2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] rankCounts = System.getProperty("bench.ranks", "1,4,16").split(",");
+		int runs = Integer.valueOf(System.getProperty("bench.runs", "3"));
+		int numNodeManagers = Integer.valueOf(System.getProperty("bench.nodemanagers", "2"));
+		String jar = System.getProperty("bench.jar", "target/mpi-yarn-1.0.0-jar-with-dependencies.jar");
+
+		File workDir = new File("target/bench");
+		workDir.mkdirs();
+		File confDir = new File(workDir, "conf");
+		confDir.mkdirs();
+		File hydra = stubHydra(workDir);
+		File executable = script(workDir, "rank", "exit 0\n");
+
+		Configuration conf = new YarnConfiguration();
+		conf.setInt(YarnConfiguration.RM_SCHEDULER_MINIMUM_ALLOCATION_MB, 64);
+		conf.setInt(YarnConfiguration.NM_PMEM_MB, 16384);
+		conf.setInt(YarnConfiguration.NM_VCORES, 64);
+		conf.setBoolean(YarnConfiguration.NM_VMEM_CHECK_ENABLED, false);
+		// the AM finds the cluster through the configuration written below, and
+		// the Hadoop jars on the class path of the benchmark: the jar with
+		// dependencies keeps only one copy of each META-INF/services file, which
+		// loses the SecurityInfo of YARN and with it the AMRM token
+		StringBuilder classPath = new StringBuilder(confDir.getAbsolutePath());
+		for (URL url : ((URLClassLoader) LaunchBenchmark.class.getClassLoader()).getURLs()) {
+			classPath.append("," + new File(url.toURI()).getAbsolutePath());
+		}
+		conf.set(YarnConfiguration.YARN_APPLICATION_CLASSPATH, classPath.toString());
+
+		// MiniDFSCluster defaults to build/test/data in the working directory
+		System.setProperty(MiniDFSCluster.PROP_TEST_BUILD_DATA, new File(workDir, "data").getAbsolutePath());
+		MiniDFSCluster dfsCluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+		conf.set(FileSystem.FS_DEFAULT_NAME_KEY, dfsCluster.getFileSystem().getUri().toString());
+		MiniYARNCluster yarnCluster = new MiniYARNCluster("mpi-yarn-bench", numNodeManagers, 1, 1);
+		yarnCluster.init(conf);
+		yarnCluster.start();
+		Configuration clusterConf = new Configuration(yarnCluster.getConfig());
+		OutputStream siteXml = new FileOutputStream(new File(confDir, "yarn-site.xml"));
+		try {
+			clusterConf.writeXml(siteXml);
+		} finally {
+			siteXml.close();
+		}
+
+		YarnClient yarnClient = YarnClient.createYarnClient();
+		yarnClient.init(clusterConf);
+		yarnClient.start();
+		FileSystem dfs = FileSystem.get(clusterConf);
+		dfs.mkdirs(new Path("/bench"));
+
+		LinkedHashMap<String, Map<String, List<Long>>> results = new LinkedHashMap<String, Map<String, List<Long>>>();
+		int seq = 0;
+		try {
+			for (String mode : new String[] { "NONE", "GROUP" }) {
+				for (String ranks : rankCounts) {
+					String key = mode + " x" + ranks;
+					LinkedHashMap<String, List<Long>> samples = new LinkedHashMap<String, List<Long>>();
+					for (String phase : PHASES) {
+						samples.put(phase, new ArrayList<Long>());
+					}
+					for (int run = 0; run < runs; run++) {
+						ArrayList<String> clientArgs = new ArrayList<String>();
+						Collections.addAll(clientArgs, "-a", executable.getAbsolutePath(), "-p",
+								dfs.getUri() + "/bench", "-hydra", hydra.getAbsolutePath(), "-jar", jar, "-m",
+								"128", "-o", dfs.getUri() + "/bench/output." + (seq++));
+						if (mode.equals("NONE")) {
+							Collections.addAll(clientArgs, "-n", ranks);
+						} else {
+							Collections.addAll(clientArgs, "-N", "1", "-ppn", ranks);
+						}
+						Map<String, Long> phases = runOnce(clusterConf, yarnClient,
+								clientArgs.toArray(new String[0]));
+						for (String phase : PHASES) {
+							samples.get(phase).add(phases.containsKey(phase) ? phases.get(phase) : -1L);
+						}
+					}
+					results.put(key, samples);
+				}
+			}
+		} finally {
+			yarnClient.stop();
+			yarnCluster.stop();
+			dfsCluster.shutdown();
+		}
+
+		// the first run of the first configuration stages a cold cache
+		StringBuilder header = new StringBuilder(String.format("%-12s", "config"));
+		for (String phase : PHASES) {
+			header.append(String.format("%10s", phase));
+		}
+		System.out.println("median over " + runs + " runs, ms");
+		System.out.println(header);
+		for (Map.Entry<String, Map<String, List<Long>>> entry : results.entrySet()) {
+			StringBuilder row = new StringBuilder(String.format("%-12s", entry.getKey()));
+			for (String phase : PHASES) {
+				row.append(String.format("%10d", median(entry.getValue().get(phase))));
+			}
+			System.out.println(row);
+		}
+		// the stopped minicluster leaves non-daemon threads behind
+		System.exit(0);
+	}
+}
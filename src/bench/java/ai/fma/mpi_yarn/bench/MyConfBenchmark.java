@@ -0,0 +1,75 @@
+package ai.fma.mpi_yarn.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ai.fma.mpi_yarn.MyConf;
+
+/**
+ * Encoding of the job descriptor handed from the client to the AM, for a
+ * plain job and for one localizing many shared objects.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MyConfBenchmark {
+	@Param({ "0", "16", "256" })
+	int numResources;
+
+	MyConf conf;
+	byte[] encoded;
+	String serialized;
+
+	private static File touch(File dir, String name) throws IOException {
+		File file = new File(dir, name);
+		file.createNewFile();
+		return file;
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		File dir = File.createTempFile("myconf", "");
+		dir.delete();
+		File hydra = new File(dir, "hydra");
+		hydra.mkdirs();
+		touch(hydra, MyConf.MPIEXEC);
+		touch(hydra, MyConf.PMI_PROXY);
+		String[] args = { "-a", touch(dir, "rank").getAbsolutePath(), "-p", "hdfs://namenode:9000/tmp", "-hydra",
+				hydra.getAbsolutePath(), "-jar", touch(dir, "mpi-yarn.jar").getAbsolutePath(), "-N", "16", "-ppn",
+				"8", "-envlist", "HOME,USER,PATH", "-args", "--iterations 1000 --size 4096" };
+		conf = new MyConf(args);
+		for (int i = 0; i < numResources; i++) {
+			conf.putContainerResource("lib" + i + ".so", "hdfs://namenode:9000/tmp/cache/"
+					+ String.format("%064x", i) + "/lib" + i + ".so");
+		}
+		encoded = MyConf.encode(conf);
+		serialized = MyConf.serialize(conf);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return MyConf.encode(conf);
+	}
+
+	@Benchmark
+	public MyConf decode() throws IOException {
+		return MyConf.decode(encoded);
+	}
+
+	@Benchmark
+	public MyConf roundTripBase64() throws IOException {
+		return MyConf.deserialize(MyConf.serialize(conf));
+	}
+}
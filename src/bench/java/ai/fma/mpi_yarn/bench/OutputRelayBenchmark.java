@@ -0,0 +1,95 @@
+package ai.fma.mpi_yarn.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import ai.fma.mpi_yarn.OutputSink;
+import ai.fma.mpi_yarn.StreamPump;
+
+/**
+ * mpiexec output relay: OutputSink appends under each flush policy, and a
+ * StreamPump draining a whole stream into the sink. The sink writes to the
+ * local file system, so this measures the relay itself, not HDFS.
+ */
+@State(Scope.Thread)
+@Fork(1)
+public class OutputRelayBenchmark {
+	@Param({ "128", "4096", "65536" })
+	int chunkBytes;
+
+	@Param({ "time:200", "bytes:1048576", "hflush" })
+	String flushPolicy;
+
+	// bytes relayed by one pump invocation
+	static int STREAM_BYTES = 16 * 1024 * 1024;
+
+	FileSystem local;
+	File file;
+	OutputSink sink;
+	byte[] chunk;
+	byte[] stream;
+	PrintStream discard = new PrintStream(new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws IOException {
+		local = FileSystem.getLocal(new Configuration());
+		chunk = new byte[chunkBytes];
+		stream = new byte[STREAM_BYTES];
+		for (int i = 0; i < stream.length; i++) {
+			stream[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + i % 26);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void open() throws IOException {
+		file = File.createTempFile("relay", ".out");
+		sink = new OutputSink(local.create(new Path(file.getAbsolutePath()), true), flushPolicy);
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() throws IOException {
+		sink.close();
+		file.delete();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void sinkWrite() throws IOException {
+		sink.write(chunk, 0, chunk.length);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void pumpStream() throws Exception {
+		StreamPump pump = new StreamPump("bench", new ByteArrayInputStream(stream), discard, sink);
+		pump.start();
+		pump.awaitDrained();
+	}
+}
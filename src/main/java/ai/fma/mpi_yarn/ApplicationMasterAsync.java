@@ -1,135 +1,1191 @@
 package ai.fma.mpi_yarn;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.yarn.api.ApplicationConstants;
-import org.apache.hadoop.yarn.api.protocolrecords.AllocateResponse;
-import org.apache.hadoop.yarn.api.records.*;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.LocalResourceType;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.api.records.ResourceRequest;
 import org.apache.hadoop.yarn.client.api.AMRMClient.ContainerRequest;
-import org.apache.hadoop.yarn.client.api.NMClient;
 import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
 import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.util.Records;
 
 /**
- * This class implements a simple async app master.
- * In real usages, the callbacks should execute in a separate thread or thread pool
+ * Event-driven application master. Allocation, launch and completion are
+ * handled in the AMRMClientAsync / NMClientAsync callbacks; the main thread
+ * only drives the hydra launch flow; mpiexec output is relayed by StreamPumps.
+ * With -pmi the AM serves PMI itself (PmiServer) and every container starts
+ * its ranks through a PmiProxy, without mpiexec.
  */
-public class ApplicationMasterAsync implements AMRMClientAsync.CallbackHandler {
-    Configuration configuration;
-    NMClient nmClient;
-    String command;
-    int numContainersToWaitFor;
-
-    public ApplicationMasterAsync(String command, int numContainersToWaitFor) {
-        this.command = command;
-        configuration = new YarnConfiguration();
-        this.numContainersToWaitFor = numContainersToWaitFor;
-        nmClient = NMClient.createNMClient();
-        nmClient.init(configuration);
-        nmClient.start();
-    }
-
-    public void onContainersAllocated(List<Container> containers) {
-        for (Container container : containers) {
-            try {
-                // Launch container by create ContainerLaunchContext
-                ContainerLaunchContext ctx =
-                        Records.newRecord(ContainerLaunchContext.class);
-                ctx.setCommands(
-                        Collections.singletonList(
-                                command +
-                                        " 1>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stdout" +
-                                        " 2>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stderr"
-                        ));
-                System.out.println("[AM] Launching container " + container.getId());
-                nmClient.startContainer(container, ctx);
-            } catch (Exception ex) {
-                System.err.println("[AM] Error launching container " + container.getId() + " " + ex);
-            }
-        }
-    }
-
-    public void onContainersCompleted(List<ContainerStatus> statuses) {
-        for (ContainerStatus status : statuses) {
-            System.out.println("[AM] Completed container " + status.getContainerId());
-            synchronized (this) {
-                numContainersToWaitFor--;
-            }
-        }
-    }
-
-    public void onNodesUpdated(List<NodeReport> updated) {
-    }
-
-    public void onReboot() {
-    }
-
-    public void onShutdownRequest() {
-    }
-
-    public void onError(Throwable t) {
-    }
-
-    public float getProgress() {
-        return 0;
-    }
-
-    public boolean doneWithContainers() {
-        return numContainersToWaitFor == 0;
-    }
-
-    public Configuration getConfiguration() {
-        return configuration;
-    }
-
-    public static void main(String[] args) throws Exception {
-        final String command = args[0];
-        final int n = Integer.valueOf(args[1]);
-
-        ApplicationMasterAsync master = new ApplicationMasterAsync(command, n);
-        master.runMainLoop();
-
-    }
-
-    public void runMainLoop() throws Exception {
-
-        AMRMClientAsync<ContainerRequest> rmClient = AMRMClientAsync.createAMRMClientAsync(100, this);
-        rmClient.init(getConfiguration());
-        rmClient.start();
-
-        // Register with ResourceManager
-        System.out.println("[AM] registerApplicationMaster 0");
-        rmClient.registerApplicationMaster("", 0, "");
-        System.out.println("[AM] registerApplicationMaster 1");
-
-        // Priority for worker containers - priorities are intra-application
-        Priority priority = Records.newRecord(Priority.class);
-        priority.setPriority(0);
-
-        // Resource requirements for worker containers
-        Resource capability = Records.newRecord(Resource.class);
-        capability.setMemory(128);
-        capability.setVirtualCores(1);
-
-        // Make container requests to ResourceManager
-        for (int i = 0; i < numContainersToWaitFor; ++i) {
-            ContainerRequest containerAsk = new ContainerRequest(capability, null, null, priority);
-            System.out.println("[AM] Making res-req " + i);
-            rmClient.addContainerRequest(containerAsk);
-        }
-
-        System.out.println("[AM] waiting for containers to finish");
-        while (!doneWithContainers()) {
-            Thread.sleep(100);
-        }
-
-        System.out.println("[AM] unregisterApplicationMaster 0");
-        // Un-register with ResourceManager
-        rmClient.unregisterApplicationMaster(
-                FinalApplicationStatus.SUCCEEDED, "", "");
-        System.out.println("[AM] unregisterApplicationMaster 1");
-    }
+public class ApplicationMasterAsync implements AMRMClientAsync.CallbackHandler, NMClientAsync.CallbackHandler {
+	// RM heartbeat while gathering containers
+	public static int ALLOCATE_HEARTBEAT_MS = 100;
+	// RM heartbeat while the ranks are running
+	public static int RUNNING_HEARTBEAT_MS = 1000;
+	// how often an idle session looks for queued jobs
+	public static int SESSION_POLL_MS = 500;
+	// session agents keep shipped executables below this directory
+	public static String SESSION_FILES = "session";
+	// rank count of the job in the environment of every rank
+	public static String EnvNumRanks = "MPI_YARN_NUM_RANKS";
+	// exit code and output of every task of a job array, next to the output file
+	public static String ARRAY_STATUS_SUFFIX = ".tasks";
+
+	Configuration conf;
+	FileSystem dfs;
+	MyConf myConf;
+	// null between the jobs of a session
+	volatile OutputSink output;
+	// per-rank split of the output, null unless -rankoutput
+	RankOutput rankOutput = null;
+	// relay of the live container logs, null unless -livelogs
+	LogRelay logRelay = null;
+	// PMI of the ranks, null unless -pmi
+	PmiServer pmiServer = null;
+	AMRMClientAsync<ContainerRequest> rmClient;
+	NMClientAsync nmClient;
+	Priority priority;
+	Resource capability;
+	ContainerLauncher launcher;
+	GroupAllocator groupAllocator;
+	RankPlacement placement;
+	// racks NONE mode requests are confined to, null for any rack
+	String[] racks = null;
+	LaunchBinder binder;
+	Map<String, LocalResource> localResources;
+	Map<String, String> containerEnv;
+	PhaseTimer timer = new PhaseTimer();
+
+	// state below is guarded by this
+	ArrayList<Container> containers = new ArrayList<Container>();
+	LinkedHashMap<String, ArrayList<Container>> hostContainers = new LinkedHashMap<String, ArrayList<Container>>();
+	boolean allocationDone = false;
+	HashSet<ContainerId> runningContainers = new HashSet<ContainerId>();
+	int completedContainers = 0;
+	boolean launchDone = false;
+	Throwable fatalError = null;
+	// session and job array mode: last job start per pool container, executables shipped to it
+	HashMap<ContainerId, Long> lastUsedMs = new HashMap<ContainerId, Long>();
+	HashMap<ContainerId, HashSet<String>> shippedFiles = new HashMap<ContainerId, HashSet<String>>();
+	// pool containers bound to a running job
+	HashSet<ContainerId> busyContainers = new HashSet<ContainerId>();
+
+	public ApplicationMasterAsync() throws IOException {
+		conf = new YarnConfiguration();
+		dfs = FileSystem.get(conf);
+		myConf = MyConf.load(dfs);
+	}
+
+	// messages outside of a session job only go to the AM log
+	void clientPrint(String mesg) throws IOException {
+		System.out.print(mesg);
+		OutputSink sink = output;
+		if (sink != null) {
+			sink.write(mesg);
+		}
+	}
+
+	void clientPrintln(String mesg) throws IOException {
+		clientPrint(mesg + "\n");
+	}
+
+	private void ask(int num) {
+		for (int i = 0; i < num; i++) {
+			rmClient.addContainerRequest(new ContainerRequest(capability, null, racks, priority, racks == null));
+		}
+	}
+
+	// AMRMClient keeps satisfied requests in its ask table, drop one per
+	// allocated container so that it is not asked for again
+	private void removeSatisfiedRequest(Container container) {
+		List<? extends Collection<ContainerRequest>> matching = rmClient
+				.getMatchingRequests(container.getPriority(), ResourceRequest.ANY, capability);
+		if (!matching.isEmpty() && !matching.get(0).isEmpty()) {
+			rmClient.removeContainerRequest(matching.get(0).iterator().next());
+		}
+	}
+
+	private void addHostContainer(Container container) {
+		String host = container.getNodeId().getHost();
+		if (!hostContainers.containsKey(host)) {
+			hostContainers.put(host, new ArrayList<Container>());
+		}
+		hostContainers.get(host).add(container);
+	}
+
+	public void onContainersAllocated(List<Container> allocated) {
+		synchronized (this) {
+			List<Container> acquired = new ArrayList<Container>();
+			if (groupAllocator != null) {
+				if (groupAllocator.onAllocated(allocated)) {
+					allocationDone = true;
+				}
+				acquired = groupAllocator.takeAcquired();
+			} else {
+				for (Container container : allocated) {
+					removeSatisfiedRequest(container);
+					if (allocationDone) {
+						System.out.println("Releasing surplus container " + container.getId());
+						rmClient.releaseAssignedContainer(container.getId());
+						continue;
+					}
+					System.out.println("Acquired container " + container.getId() + " at host "
+							+ container.getNodeId().getHost());
+					containers.add(container);
+					addHostContainer(container);
+					acquired.add(container);
+					if (containers.size() == myConf.getAllocProcs()) {
+						allocationDone = true;
+					}
+				}
+			}
+			long now = System.currentTimeMillis();
+			for (Container container : acquired) {
+				timer.container(container.getId().toString(), "host", container.getNodeId().getHost());
+				timer.container(container.getId().toString(), "allocatedAt", now);
+			}
+			if (binder != null) {
+				startPlaceholders(acquired);
+			}
+			// past the allocation deadline, waitForAllocation counts the holdings
+			notifyAll();
+		}
+	}
+
+	// wrap a container command so that its output lands in the container log
+	private static String withLogs(String cmd) {
+		return cmd + " 1>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stdout" + " 2>"
+				+ ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stderr";
+	}
+
+	private static String AGENT_COMMAND = "$JAVA_HOME/bin/java -Xmx64m -cp ./" + MyConf.AM_JAR
+			+ " ai.fma.mpi_yarn.ProxyAgent";
+
+	private ContainerLaunchContext newLaunchContext(String cmd) {
+		ContainerLaunchContext ctx = Records.newRecord(ContainerLaunchContext.class);
+		ctx.setLocalResources(localResources);
+		ctx.setEnvironment(containerEnv);
+		ArrayList<String> commands = new ArrayList<String>();
+		commands.add(withLogs(cmd));
+		ctx.setCommands(commands);
+		return ctx;
+	}
+
+	// pipelined and session mode: localize and start an agent right away, the hydra proxy
+	// command is bound once the host list is final
+	private synchronized void startPlaceholders(List<Container> acquired) {
+		if (acquired.isEmpty()) {
+			return;
+		}
+		for (Container container : acquired) {
+			runningContainers.add(container.getId());
+			launcher.add(container, newLaunchContext(AGENT_COMMAND));
+		}
+		launcher.launchAll();
+	}
+
+	public void onContainersCompleted(List<ContainerStatus> statuses) {
+		for (ContainerStatus status : statuses) {
+			timer.container(status.getContainerId().toString(), "completedAt", System.currentTimeMillis());
+			timer.container(status.getContainerId().toString(), "exitStatus", status.getExitStatus());
+			if (status.getExitStatus() != 0) {
+				try {
+					clientPrintln("Completed container " + status.getContainerId() + " with exit code "
+							+ status.getExitStatus());
+				} catch (IOException e) {
+					System.out.println(e.getMessage());
+				}
+			} else {
+				System.out.println("Completed container " + status.getContainerId() + " with exit code "
+						+ status.getExitStatus());
+			}
+			if (markCompleted(status.getContainerId()) && status.getExitStatus() != 0) {
+				rankFailed("container " + status.getContainerId() + " exited with code " + status.getExitStatus());
+			}
+		}
+	}
+
+	public void onNodesUpdated(List<NodeReport> updated) {
+	}
+
+	public void onShutdownRequest() {
+		fail(new RuntimeException("ResourceManager requested shutdown"));
+	}
+
+	public void onError(Throwable t) {
+		fail(t);
+	}
+
+	public float getProgress() {
+		synchronized (this) {
+			if (!launchDone || containers.isEmpty()) {
+				return 0;
+			}
+			return (float) completedContainers / containers.size();
+		}
+	}
+
+	public void onContainerStarted(ContainerId containerId, Map<String, ByteBuffer> allServiceResponse) {
+		System.out.println("Started container " + containerId);
+		timer.container(containerId.toString(), "startedAt", System.currentTimeMillis());
+		launcher.onStarted(containerId);
+	}
+
+	public void onStartContainerError(ContainerId containerId, Throwable t) {
+		launcher.onFailed(containerId, t);
+		try {
+			clientPrintln("Failed to start container " + containerId + ": " + t);
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+		rmClient.releaseAssignedContainer(containerId);
+		if (markCompleted(containerId)) {
+			rankFailed("container " + containerId + " failed to start: " + t);
+		}
+	}
+
+	public void onContainerStatusReceived(ContainerId containerId, ContainerStatus containerStatus) {
+	}
+
+	public void onContainerStopped(ContainerId containerId) {
+	}
+
+	public void onGetContainerStatusError(ContainerId containerId, Throwable t) {
+	}
+
+	public void onStopContainerError(ContainerId containerId, Throwable t) {
+	}
+
+	// only launched ranks count, released containers are reported as completed too
+	/** @return true if the container was a launched rank */
+	private synchronized boolean markCompleted(ContainerId containerId) {
+		if (isPooled()) {
+			dropFromPool(containerId);
+		}
+		if (runningContainers.remove(containerId)) {
+			completedContainers++;
+			notifyAll();
+			return true;
+		}
+		return false;
+	}
+
+	// sessions and job arrays run jobs on a pool of agents that outlives each job
+	private boolean isPooled() {
+		return myConf.isSession() || myConf.isArray();
+	}
+
+	// a pool is kept, mpiexec of the running job fails on its own; with -pmi
+	// nothing else ends the surviving ranks, so the job fails under either policy
+	private void rankFailed(String reason) {
+		if ((myConf.isFailFast() || pmiServer != null) && !isPooled()) {
+			fail(new RuntimeException(reason));
+		}
+	}
+
+	/**
+	 * Fail fast: kill mpiexec, if any, and stop every rank container that is still
+	 * running, so that the capacity returns before unregistering.
+	 */
+	private void teardown(Process p) {
+		if (p != null) {
+			p.destroy();
+		}
+		ArrayList<Container> running = new ArrayList<Container>();
+		synchronized (this) {
+			for (Container container : containers) {
+				if (runningContainers.contains(container.getId())) {
+					running.add(container);
+				}
+			}
+		}
+		System.out.println("tearing down " + running.size() + " running containers");
+		for (Container container : running) {
+			nmClient.stopContainerAsync(container.getId(), container.getNodeId());
+			rmClient.releaseAssignedContainer(container.getId());
+		}
+	}
+
+	private synchronized void fail(Throwable t) {
+		System.out.println("AM error: " + t);
+		if (fatalError == null) {
+			fatalError = t;
+		}
+		notifyAll();
+	}
+
+	private synchronized void checkFatal() {
+		if (fatalError != null) {
+			throw new RuntimeException(fatalError);
+		}
+	}
+
+	// the rack constraint was not met within -rackwait, take any rack
+	private synchronized void withdrawAsks() {
+		ArrayList<ContainerRequest> outstanding = new ArrayList<ContainerRequest>();
+		for (Collection<ContainerRequest> requests : rmClient.getMatchingRequests(priority, ResourceRequest.ANY,
+				capability)) {
+			outstanding.addAll(requests);
+		}
+		for (ContainerRequest request : outstanding) {
+			rmClient.removeContainerRequest(request);
+		}
+	}
+
+	// containers, or complete groups, held towards the minimum of an elastic job
+	private synchronized int numHeld() {
+		return groupAllocator != null ? groupAllocator.getNumComplete() : containers.size();
+	}
+
+	private int minHeld() {
+		return groupAllocator != null ? myConf.getMinNodes() : myConf.getMinProcs();
+	}
+
+	private synchronized void relaxRacks() {
+		System.out.println("rack constraint " + myConf.getRacks() + " not met within " + myConf.getRackWaitSec()
+				+ "s, relaxing to any rack");
+		if (groupAllocator != null) {
+			groupAllocator.relaxRacks();
+			return;
+		}
+		withdrawAsks();
+		// relaxed and rack-only requests must not share a priority
+		racks = null;
+		Priority relaxed = Records.newRecord(Priority.class);
+		relaxed.setPriority(priority.getPriority() + 1);
+		priority = relaxed;
+		ask(myConf.getAllocProcs() - containers.size());
+	}
+
+	private void waitForAllocation() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		long rackDeadline = Long.MAX_VALUE;
+		if (!myConf.getRacks().isEmpty() && myConf.getRackWaitSec() >= 0) {
+			rackDeadline = now + myConf.getRackWaitSec() * 1000L;
+		}
+		long allocDeadline = Long.MAX_VALUE;
+		if (myConf.getAllocDeadlineSec() >= 0) {
+			allocDeadline = now + myConf.getAllocDeadlineSec() * 1000L;
+		}
+		synchronized (this) {
+			while (!allocationDone && fatalError == null) {
+				now = System.currentTimeMillis();
+				if (now >= rackDeadline) {
+					relaxRacks();
+					rackDeadline = Long.MAX_VALUE;
+					continue;
+				}
+				if (now >= allocDeadline && numHeld() >= minHeld()) {
+					// start with what we hold, later containers are released as surplus
+					System.out.println("allocation deadline of " + myConf.getAllocDeadlineSec()
+							+ "s passed, starting with " + numHeld() + " (minimum " + minHeld() + ")");
+					if (groupAllocator == null) {
+						withdrawAsks();
+					}
+					allocationDone = true;
+					break;
+				}
+				// below the minimum at the deadline, every allocation wakes us up
+				long wakeAt = Math.min(rackDeadline, now < allocDeadline ? allocDeadline : Long.MAX_VALUE);
+				if (wakeAt == Long.MAX_VALUE) {
+					wait();
+				} else {
+					wait(Math.min(wakeAt - now, Integer.MAX_VALUE));
+				}
+			}
+		}
+		checkFatal();
+		if (groupAllocator != null) {
+			Map<String, ArrayList<Container>> groups = groupAllocator.finish();
+			synchronized (this) {
+				hostContainers.putAll(groups);
+				for (ArrayList<Container> group : groups.values()) {
+					containers.addAll(group);
+				}
+				// placeholders of released partial groups do not count
+				HashSet<ContainerId> kept = new HashSet<ContainerId>();
+				for (Container container : containers) {
+					kept.add(container.getId());
+				}
+				runningContainers.retainAll(kept);
+			}
+		}
+	}
+
+	private Map<String, LocalResource> setupLocalResources() throws IOException {
+		Map<String, LocalResource> localResources = new HashMap<String, LocalResource>();
+		for (Map.Entry<String, String> entry : myConf.getContainerResources().entrySet()) {
+			LocalResource resource = Records.newRecord(LocalResource.class);
+			MyConf.setupLocalResource(dfs, new Path(entry.getValue()), resource);
+			localResources.put(entry.getKey(), resource);
+		}
+		for (Map.Entry<String, String> entry : myConf.getContainerArchives().entrySet()) {
+			LocalResource resource = Records.newRecord(LocalResource.class);
+			MyConf.setupLocalResource(dfs, new Path(entry.getValue()), resource, LocalResourceType.ARCHIVE);
+			localResources.put(entry.getKey(), resource);
+		}
+		return localResources;
+	}
+
+	private Map<String, String> setupContainerEnv() {
+		HashSet<String> envList = myConf.getEnvList();
+		Map<String, String> containerEnv = new HashMap<String, String>();
+		for (String envName : System.getenv().keySet()) {
+			if (envList.contains(envName)) {
+				containerEnv.put(envName, System.getenv(envName));
+			}
+		}
+		String ldLibraryPath = containerEnv.get("LD_LIBRARY_PATH");
+		if (ldLibraryPath == null) {
+			ldLibraryPath = "./" + SharedObjectBundle.NAME;
+		} else {
+			ldLibraryPath = "./" + SharedObjectBundle.NAME + ":" + ldLibraryPath;
+		}
+		containerEnv.put("LD_LIBRARY_PATH", ldLibraryPath);
+		return containerEnv;
+	}
+
+	private static String nextLaunchLine(InputStream mpirunIstream) throws IOException {
+		String line = StreamPump.readLine(mpirunIstream);
+		if (line == null) {
+			throw new RuntimeException("mpiexec exited before HYDRA_LAUNCH_END");
+		}
+		return line;
+	}
+
+	// hydra starts one proxy per host entry, each forking ranksPerContainer ranks
+	private Process startMpiexec(List<Container> sequence, int ranksPerContainer, int numRanks, String executable,
+			String args, Map<String, String> env) throws IOException {
+		StringBuilder hostSb = new StringBuilder();
+		for (Container container : sequence) {
+			if (hostSb.length() > 0) {
+				hostSb.append(",");
+			}
+			hostSb.append(container.getNodeId().getHost());
+		}
+		// -prepend-rank labels every line with its rank for RankOutput
+		String cmd = MessageFormat.format("./{0} -launcher manual -n {1} -ppn {2} -hosts {3} {4}{5} {6}",
+				MyConf.MPIEXEC, String.valueOf(numRanks), String.valueOf(ranksPerContainer), hostSb.toString(),
+				myConf.isRankOutput() ? "-prepend-rank " : "", executable, args);
+		System.out.println("invoke " + cmd);
+		ProcessBuilder pb = new ProcessBuilder(cmd.split("\\s"));
+		// hydra passes the environment of mpiexec on to the ranks
+		if (env != null) {
+			pb.environment().putAll(env);
+		}
+		return pb.start();
+	}
+
+	private static ArrayList<String> readProxyCommands(InputStream mpirunIstream, int numProxies)
+			throws IOException {
+		ArrayList<String> proxyCommands = new ArrayList<String>();
+		for (int i = 0; i < numProxies; i++) {
+			String line = nextLaunchLine(mpirunIstream);
+			// HYDRA_LAUNCH:
+			// /Users/ybw/local/mpich-3.2/bin/hydra_pmi_proxy
+			// --control-port 172.23.100.68:58247 --rmk user --launcher
+			// manual --demux poll --pgid 0 --retries 10 --usize -2
+			// --proxy-id 0
+			String[] sp = line.split(" ");
+			String[] sub_sp = Arrays.copyOfRange(sp, 2, sp.length);
+			proxyCommands.add("./" + MyConf.PMI_PROXY + " " + StringUtils.join(sub_sp, " "));
+		}
+		String nextLine = nextLaunchLine(mpirunIstream);
+		if (!nextLine.startsWith("HYDRA_LAUNCH_END")) {
+			throw new RuntimeException("Not Start With HYDRA_LAUNCH_END, but " + nextLine);
+		}
+		return proxyCommands;
+	}
+
+	private void runJob(int ranksPerContainer) throws Exception {
+		ArrayList<Container> containerSequence = placement.order(hostContainers);
+		// an elastic job may hold fewer than the maximum, tell the ranks what they got
+		int numRanks = containerSequence.size() * ranksPerContainer;
+		HashMap<String, String> env = new HashMap<String, String>();
+		env.put(EnvNumRanks, String.valueOf(numRanks));
+		timer.info("numRanks", numRanks);
+		clientPrintln("starting " + numRanks + " ranks");
+		Process p = null;
+		StreamPump stdoutPump = null;
+		StreamPump stderrPump = null;
+		ArrayList<String> proxyCommands;
+		if (pmiServer != null) {
+			proxyCommands = pmiCommands(containerSequence, ranksPerContainer, numRanks, env);
+		} else {
+			timer.begin("hydraLaunch");
+			p = startMpiexec(containerSequence, ranksPerContainer, numRanks, myConf.getExecutableCommand(),
+					myConf.getExecutableArgs(), env);
+			InputStream mpirunIstream = p.getInputStream();
+			stderrPump = new StreamPump("stderr", p.getErrorStream(), System.err, output, rankOutput);
+			stderrPump.start();
+			// read all proxy command lines first, then start the containers concurrently
+			proxyCommands = readProxyCommands(mpirunIstream, containerSequence.size());
+			timer.end("hydraLaunch");
+			// the launch lines are consumed, from now on stdout is pumped as is
+			stdoutPump = new StreamPump("stdout", mpirunIstream, System.out, output, rankOutput);
+			stdoutPump.start();
+			// hydra exits non-zero as soon as a rank aborts
+			final Process mpiexec = p;
+			Thread watcher = new Thread("mpiexec-watch") {
+				public void run() {
+					try {
+						int exitCode = mpiexec.waitFor();
+						if (exitCode != 0) {
+							rankFailed("mpiexec exited with code " + exitCode);
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+		for (int i = 0; i < containerSequence.size(); i++) {
+			Container container = containerSequence.get(i);
+			String container_cmd = proxyCommands.get(i);
+			if (binder != null) {
+				System.out.println("Binding container " + container.getId() + " to cmd " + container_cmd);
+				binder.bind(container.getId().toString(), container_cmd);
+			} else {
+				// with live logs an agent runs the proxy and forwards its output, with
+				// -pmi it runs the ranks itself
+				launcher.add(container, newLaunchContext(logRelay != null || pmiServer != null
+						? AGENT_COMMAND + " " + container_cmd : container_cmd));
+			}
+		}
+
+		synchronized (this) {
+			for (Container container : containerSequence) {
+				runningContainers.add(container.getId());
+			}
+		}
+		long launchStartMs = System.currentTimeMillis();
+		timer.begin("launch");
+		launcher.launchAll();
+		launcher.awaitLaunched();
+		timer.end("launch");
+		System.out.println(launcher.getLatencyReport());
+		// hydra waits for every proxy, so a rank that never started hangs the
+		// job whatever the fail policy
+		Map<ContainerId, Throwable> launchFailures = launcher.getFailures();
+		if (!launchFailures.isEmpty()) {
+			Map.Entry<ContainerId, Throwable> first = launchFailures.entrySet().iterator().next();
+			fail(new RuntimeException(launchFailures.size() + " of " + containerSequence.size()
+					+ " containers failed to start, " + first.getKey() + ": " + first.getValue()));
+		}
+		synchronized (this) {
+			launchDone = true;
+		}
+
+		// Wait for containers, waking up on every completion event
+		timer.begin("run");
+		synchronized (this) {
+			while (completedContainers < containers.size() && fatalError == null) {
+				wait();
+			}
+		}
+		timer.end("run");
+		boolean failed;
+		synchronized (this) {
+			failed = fatalError != null;
+		}
+		if (failed) {
+			if (pmiServer != null) {
+				// releases the proxies waiting in a fence
+				pmiServer.close();
+			}
+			teardown(p);
+		}
+		checkFatal();
+		timer.begin("drain");
+		if (pmiServer != null) {
+			pmiServer.awaitOutput();
+		} else {
+			stdoutPump.awaitDrained();
+			stderrPump.awaitDrained();
+		}
+		timer.end("drain");
+		if (pmiServer != null) {
+			// from the launch until the first fence, which MPI_Init ends with
+			if (pmiServer.getFirstFenceMs() >= 0) {
+				timer.mark("pmiWireup", launchStartMs, pmiServer.getFirstFenceMs());
+			}
+			timer.info("pmiFences", pmiServer.getFences());
+		}
+	}
+
+	/**
+	 * With -pmi every container runs a PmiProxy for its ranksPerContainer
+	 * consecutive ranks, in the order hydra would have placed them.
+	 */
+	private ArrayList<String> pmiCommands(List<Container> sequence, int ranksPerContainer, int numRanks,
+			Map<String, String> env) {
+		ArrayList<String> hosts = new ArrayList<String>();
+		for (Container container : sequence) {
+			hosts.add(container.getNodeId().getHost());
+		}
+		pmiServer.expect(hosts, ranksPerContainer);
+		StringBuilder options = new StringBuilder(myConf.isRankOutput() ? " -prepend" : "");
+		for (Map.Entry<String, String> entry : env.entrySet()) {
+			options.append(" -env " + entry.getKey() + "=" + entry.getValue());
+		}
+		ArrayList<String> commands = new ArrayList<String>();
+		for (int i = 0; i < sequence.size(); i++) {
+			commands.add((PmiProxy.FLAG + " " + i * ranksPerContainer + " " + ranksPerContainer + " " + numRanks
+					+ options + " -- " + myConf.getExecutableCommand() + " " + myConf.getExecutableArgs()).trim());
+		}
+		return commands;
+	}
+
+	// warmest containers first, so that unused ones age out of the pool
+	private synchronized ArrayList<Container> selectContainers(int numRanks, int ranksPerContainer)
+			throws InterruptedException {
+		int needed = numRanks > 0 ? (numRanks + ranksPerContainer - 1) / ranksPerContainer : containers.size();
+		ArrayList<Container> byUse = new ArrayList<Container>();
+		while (true) {
+			if (needed == 0 || needed > containers.size()) {
+				throw new RuntimeException("job needs " + needed + " containers, the pool has " + containers.size());
+			}
+			checkFatal();
+			byUse.clear();
+			for (Container container : containers) {
+				if (!busyContainers.contains(container.getId())) {
+					byUse.add(container);
+				}
+			}
+			if (byUse.size() >= needed) {
+				break;
+			}
+			// the containers of another job array task come back when it ends
+			wait();
+		}
+		Collections.sort(byUse, new Comparator<Container>() {
+			public int compare(Container a, Container b) {
+				return Long.compare(lastUsedMs.get(b.getId()), lastUsedMs.get(a.getId()));
+			}
+		});
+		HashSet<ContainerId> chosen = new HashSet<ContainerId>();
+		for (Container container : byUse.subList(0, needed)) {
+			chosen.add(container.getId());
+		}
+		ArrayList<Container> sequence = new ArrayList<Container>();
+		long now = System.currentTimeMillis();
+		for (Container container : placement.order(hostContainers)) {
+			if (chosen.contains(container.getId())) {
+				sequence.add(container);
+				lastUsedMs.put(container.getId(), now);
+				busyContainers.add(container.getId());
+			}
+		}
+		return sequence;
+	}
+
+	private synchronized void releaseContainers(List<Container> sequence) {
+		for (Container container : sequence) {
+			busyContainers.remove(container.getId());
+		}
+		notifyAll();
+	}
+
+	private synchronized void dropFromPool(ContainerId containerId) {
+		for (Container container : containers) {
+			if (container.getId().equals(containerId)) {
+				containers.remove(container);
+				String host = container.getNodeId().getHost();
+				hostContainers.get(host).remove(container);
+				if (hostContainers.get(host).isEmpty()) {
+					hostContainers.remove(host);
+				}
+				lastUsedMs.remove(containerId);
+				shippedFiles.remove(containerId);
+				notifyAll();
+				return;
+			}
+		}
+	}
+
+	private synchronized void shrinkPool() {
+		if (myConf.getPoolIdleSec() <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Container container : new ArrayList<Container>(containers)) {
+			if (now - lastUsedMs.get(container.getId()) > myConf.getPoolIdleSec() * 1000L) {
+				System.out.println("Releasing idle session container " + container.getId());
+				dropFromPool(container.getId());
+				rmClient.releaseAssignedContainer(container.getId());
+			}
+		}
+	}
+
+	/**
+	 * Run one job on the warm pool: fresh hydra proxies are bound to the
+	 * agents of the selected containers, which stay busy until mpiexec
+	 * exits; returns its exit code.
+	 */
+	private int runOnPool(SessionJob job, int ranksPerContainer, OutputSink out, RankOutput ranks)
+			throws Exception {
+		ArrayList<Container> sequence = selectContainers(job.numRanks, ranksPerContainer);
+		Process p = null;
+		try {
+			int numRanks = job.numRanks > 0 ? job.numRanks : sequence.size() * ranksPerContainer;
+			// the pool was localized with the first executable, later ones are
+			// shipped through the binder once per container
+			String executable = myConf.getExecutableCommand();
+			String shippedPath = null;
+			LaunchBinder.Content content = null;
+			if (job.executablePath != null) {
+				final Path path = new Path(job.executablePath);
+				shippedPath = SESSION_FILES + "/" + path.getParent().getName() + "/" + job.executableName;
+				executable = "./" + shippedPath;
+				final long length = dfs.getFileStatus(path).getLen();
+				// streamed from HDFS to every agent, never held on the AM heap
+				content = new LaunchBinder.Content() {
+					public long length() {
+						return length;
+					}
+
+					public InputStream open() throws IOException {
+						return dfs.open(path);
+					}
+				};
+			}
+			job.env.put(EnvNumRanks, String.valueOf(numRanks));
+			p = startMpiexec(sequence, ranksPerContainer, numRanks, executable, job.executableArgs, job.env);
+			InputStream mpirunIstream = p.getInputStream();
+			StreamPump stderrPump = new StreamPump("stderr", p.getErrorStream(), System.err, out, ranks);
+			stderrPump.start();
+			ArrayList<String> proxyCommands = readProxyCommands(mpirunIstream, sequence.size());
+			for (int i = 0; i < sequence.size(); i++) {
+				ContainerId containerId = sequence.get(i).getId();
+				LaunchBinder.Message message = new LaunchBinder.Message();
+				synchronized (this) {
+					if (!shippedFiles.containsKey(containerId)) {
+						shippedFiles.put(containerId, new HashSet<String>());
+					}
+					if (content != null && shippedFiles.get(containerId).add(shippedPath)) {
+						message.file(shippedPath, content);
+					}
+				}
+				System.out.println("Binding container " + containerId + " to cmd " + proxyCommands.get(i));
+				binder.bind(containerId.toString(), message.run(proxyCommands.get(i)));
+			}
+			StreamPump stdoutPump = new StreamPump("stdout", mpirunIstream, System.out, out, ranks);
+			stdoutPump.start();
+			int exitCode = p.waitFor();
+			stdoutPump.awaitDrained();
+			stderrPump.awaitDrained();
+			return exitCode;
+		} catch (Exception e) {
+			if (p != null) {
+				p.destroy();
+			}
+			throw e;
+		} finally {
+			releaseContainers(sequence);
+		}
+	}
+
+	/**
+	 * Run one session job. The job output is closed and its exit code
+	 * published before the next job starts.
+	 */
+	private void runSessionJob(SessionQueue queue, SessionJob job, int ranksPerContainer) throws IOException {
+		int exitCode = -1;
+		String diagnostics = "";
+		timer.begin("job:" + job.id);
+		try {
+			clientPrintln("session job " + job.id + ": " + job.executableName + " " + job.executableArgs);
+			exitCode = runOnPool(job, ranksPerContainer, output, rankOutput);
+			clientPrintln("session job " + job.id + " exited with " + exitCode);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			diagnostics = String.valueOf(e.getMessage());
+		}
+		output.close();
+		output = null;
+		if (rankOutput != null) {
+			rankOutput.close();
+			rankOutput = null;
+		}
+		timer.end("job:" + job.id);
+		queue.complete(job.id, exitCode, diagnostics);
+	}
+
+	private int runArrayTask(int index, String args, int ranksPerContainer) {
+		SessionJob task = new SessionJob();
+		task.id = String.valueOf(index);
+		task.executableName = myConf.getExecutableName();
+		task.executableArgs = args;
+		task.numRanks = myConf.getNumRanks();
+		String outputPath = arrayTaskOutput(index);
+		int exitCode = -1;
+		timer.begin("task:" + index);
+		try {
+			OutputSink out = new OutputSink(dfs.create(new Path(outputPath)), myConf.getFlushPolicy());
+			RankOutput ranks = openRankOutput(outputPath);
+			try {
+				clientPrintln("array task " + index + ": " + args);
+				exitCode = runOnPool(task, ranksPerContainer, out, ranks);
+			} finally {
+				out.close();
+				if (ranks != null) {
+					ranks.close();
+				}
+			}
+			clientPrintln("array task " + index + " exited with " + exitCode);
+		} catch (Exception e) {
+			System.out.println("array task " + index + ": " + e.getMessage());
+		}
+		timer.end("task:" + index);
+		return exitCode;
+	}
+
+	private String arrayTaskOutput(int index) {
+		return myConf.getOutputPath() + ".task-" + index;
+	}
+
+	/**
+	 * Run the tasks of a job array on the pool, as many at once as it holds.
+	 * Every task writes <output>.task-<index>; <output>.tasks lists the exit
+	 * code and output of every task.
+	 */
+	private void runArray(final int ranksPerContainer) throws Exception {
+		final List<String> tasks = myConf.getArrayTasks();
+		final int[] exitCodes = new int[tasks.size()];
+		// next task to start, guarded by exitCodes
+		final int[] next = { 0 };
+		int containersPerTask = (myConf.getNumRanks() + ranksPerContainer - 1) / ranksPerContainer;
+		int slots;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Container container : containers) {
+				lastUsedMs.put(container.getId(), now);
+			}
+			slots = Math.min(tasks.size(), Math.max(1, containers.size() / containersPerTask));
+		}
+		clientPrintln("job array of " + tasks.size() + " tasks, " + slots + " at a time");
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		for (int s = 0; s < slots; s++) {
+			Thread worker = new Thread("array-slot-" + s) {
+				public void run() {
+					while (true) {
+						int index;
+						synchronized (exitCodes) {
+							if (next[0] == tasks.size()) {
+								return;
+							}
+							index = next[0]++;
+						}
+						exitCodes[index] = runArrayTask(index, tasks.get(index), ranksPerContainer);
+					}
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		int failed = 0;
+		StringBuilder status = new StringBuilder();
+		for (int i = 0; i < tasks.size(); i++) {
+			status.append(i + "\t" + exitCodes[i] + "\t" + arrayTaskOutput(i) + "\n");
+			if (exitCodes[i] != 0) {
+				failed++;
+			}
+		}
+		FSDataOutputStream statusOut = dfs.create(new Path(myConf.getOutputPath() + ARRAY_STATUS_SUFFIX), true);
+		try {
+			statusOut.write(status.toString().getBytes(StandardCharsets.UTF_8));
+		} finally {
+			statusOut.close();
+		}
+		clientPrintln("job array: " + (tasks.size() - failed) + " of " + tasks.size() + " tasks succeeded");
+		if (failed > 0) {
+			throw new RuntimeException(failed + " of " + tasks.size() + " array tasks failed");
+		}
+	}
+
+	private void runSession(int ranksPerContainer) throws Exception {
+		String appId = ConverterUtils
+				.toContainerId(System.getenv(ApplicationConstants.Environment.CONTAINER_ID.name()))
+				.getApplicationAttemptId().getApplicationId().toString();
+		SessionQueue queue = new SessionQueue(dfs, myConf.getHdfsPrefix(), appId);
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Container container : containers) {
+				lastUsedMs.put(container.getId(), now);
+			}
+		}
+		try {
+			SessionJob first = new SessionJob();
+			first.id = SessionQueue.FIRST_JOB_ID;
+			first.executableName = myConf.getExecutableName();
+			first.executableArgs = myConf.getExecutableArgs();
+			first.numRanks = myConf.getNumRanks();
+			runSessionJob(queue, first, ranksPerContainer);
+			long idleSince = System.currentTimeMillis();
+			while (true) {
+				checkFatal();
+				SessionJob job = queue.poll();
+				if (job != null) {
+					output = new OutputSink(dfs.create(new Path(job.outputPath)), myConf.getFlushPolicy());
+					rankOutput = openRankOutput(job.outputPath);
+					runSessionJob(queue, job, ranksPerContainer);
+					idleSince = System.currentTimeMillis();
+					continue;
+				}
+				if (System.currentTimeMillis() - idleSince > myConf.getIdleTimeoutSec() * 1000L) {
+					System.out.println("session idle for " + myConf.getIdleTimeoutSec() + "s, closing");
+					return;
+				}
+				shrinkPool();
+				synchronized (this) {
+					if (containers.isEmpty()) {
+						throw new RuntimeException("no container left in the session pool");
+					}
+					if (fatalError == null) {
+						wait(SESSION_POLL_MS);
+					}
+				}
+			}
+		} finally {
+			queue.delete();
+		}
+	}
+
+	public void run() throws Exception {
+		System.out.println("append output into " + myConf.getOutputPath());
+		output = new OutputSink(dfs.create(new Path(myConf.getOutputPath())), myConf.getFlushPolicy());
+		rankOutput = openRankOutput(myConf.getOutputPath());
+
+		rmClient = AMRMClientAsync.createAMRMClientAsync(ALLOCATE_HEARTBEAT_MS, this);
+		rmClient.init(conf);
+		rmClient.start();
+
+		nmClient = NMClientAsync.createNMClientAsync(this);
+		nmClient.init(conf);
+		nmClient.start();
+
+		// Register with ResourceManager
+		System.out.println("registerApplicationMaster 0");
+		rmClient.registerApplicationMaster("", 0, "");
+		System.out.println("registerApplicationMaster 1");
+		long jvmStartMs = ManagementFactory.getRuntimeMXBean().getStartTime();
+		timer.mark("staging", myConf.getClientStartMs(), myConf.getStagedAtMs());
+		timer.mark("submission", myConf.getStagedAtMs(), myConf.getSubmittedAtMs());
+		// queueing, AM container localization and JVM startup
+		timer.mark("amStart", myConf.getSubmittedAtMs(), jvmStartMs);
+		timer.mark("amInit", jvmStartMs, System.currentTimeMillis());
+
+		// Priority for worker containers - priorities are intra-application
+		priority = Records.newRecord(Priority.class);
+		priority.setPriority(0);
+
+		localResources = setupLocalResources();
+		containerEnv = setupContainerEnv();
+		launcher = new ContainerLauncher(nmClient, myConf.getMaxLaunchesPerNode());
+		if (myConf.isPipelined() || isPooled()) {
+			binder = new LaunchBinder();
+			binder.start();
+			containerEnv.put(LaunchBinder.EnvAddress, System.getenv(ApplicationConstants.Environment.NM_HOST.name())
+					+ ":" + binder.getPort());
+			containerEnv.put(LaunchBinder.EnvToken, binder.getToken());
+			if (isPooled()) {
+				containerEnv.put(LaunchBinder.EnvSession, "1");
+			}
+		}
+		if (myConf.isLiveLogs()) {
+			Path livePath = LogRelay.livePath(myConf.getOutputPath());
+			System.out.println("relay container logs into " + livePath);
+			logRelay = new LogRelay(new OutputSink(dfs.create(livePath), myConf.getFlushPolicy()));
+			logRelay.start();
+			containerEnv.put(LogRelay.EnvAddress, System.getenv(ApplicationConstants.Environment.NM_HOST.name())
+					+ ":" + logRelay.getPort());
+			containerEnv.put(LogRelay.EnvToken, logRelay.getToken());
+		}
+		if (myConf.isPmi()) {
+			pmiServer = new PmiServer(output, rankOutput, new PmiServer.Listener() {
+				public void onAbort(int rank, int exitCode) {
+					System.out.println("rank " + rank + " aborted with exit code " + exitCode);
+					rankFailed("rank " + rank + " aborted with exit code " + exitCode);
+				}
+			});
+			pmiServer.start();
+			containerEnv.put(PmiServer.EnvAddress, System.getenv(ApplicationConstants.Environment.NM_HOST.name())
+					+ ":" + pmiServer.getPort());
+			containerEnv.put(PmiServer.EnvToken, pmiServer.getToken());
+			containerEnv.put(PmiServer.EnvKvsName, pmiServer.getKvsName());
+		}
+		System.out.println("=== Environment ===");
+		System.out.println(containerEnv);
+		System.out.println("===================");
+
+		// Resource requirements for worker containers, a packed container
+		// holds all ppn ranks of its node
+		int ranksPerContainer = myConf.getRanksPerContainer();
+		capability = Records.newRecord(Resource.class);
+		capability.setMemory(myConf.getContainerMemoryMb() * ranksPerContainer);
+		capability.setVirtualCores(myConf.getRankVcores() * ranksPerContainer);
+
+		timer.begin("allocation");
+		if (!myConf.getRacks().isEmpty()) {
+			System.out.println("confine allocation to racks " + myConf.getRacks());
+			racks = myConf.getRacks().toArray(new String[0]);
+		}
+		if (myConf.getLocalityType() == LocalityType.NONE) {
+			int n = myConf.getAllocProcs();
+			System.out.println("request " + String.valueOf(n) + " container; container memory = "
+					+ String.valueOf(myConf.getContainerMemoryMb()) + "MB");
+			ask(n);
+		} else if (myConf.getLocalityType() == LocalityType.GROUP) {
+			System.out.println("request " + myConf.getAllocNodes() + " groups; each group has "
+					+ myConf.getNumProcsPerNode() + " containers; container memory = "
+					+ String.valueOf(myConf.getContainerMemoryMb()));
+			groupAllocator = new GroupAllocator(rmClient, capability, priority.getPriority() + 1,
+					myConf.getAllocNodes(), myConf.getNumProcsPerNode());
+			groupAllocator.constrainRacks(racks);
+			groupAllocator.start();
+		} else if (myConf.getLocalityType() == LocalityType.PACKED) {
+			System.out.println("request " + myConf.getAllocNodes() + " packed containers of "
+					+ capability.getVirtualCores() + " vcores; container memory = "
+					+ String.valueOf(capability.getMemory()) + "MB");
+			// a group of one container per host
+			groupAllocator = new GroupAllocator(rmClient, capability, priority.getPriority() + 1,
+					myConf.getAllocNodes(), 1);
+			groupAllocator.constrainRacks(racks);
+			groupAllocator.start();
+		}
+		waitForAllocation();
+		timer.end("allocation");
+
+		// ranks only need the heartbeat for completion events from now on
+		rmClient.setHeartbeatInterval(RUNNING_HEARTBEAT_MS);
+
+		placement = new RankPlacement(myConf.getPlacement(), conf);
+		clientPrintln("acquired node list (" + myConf.getPlacement().name().toLowerCase() + " placement): ");
+		LinkedHashSet<String> hostOrder = new LinkedHashSet<String>();
+		for (Container container : placement.order(hostContainers)) {
+			hostOrder.add(container.getNodeId().getHost());
+		}
+		LinkedHashSet<String> spannedRacks = new LinkedHashSet<String>();
+		for (String host : hostOrder) {
+			clientPrintln("   " + host + ":" + hostContainers.get(host).size() + " " + RankPlacement.rackOf(host));
+			spannedRacks.add(RankPlacement.rackOf(host));
+		}
+		clientPrintln("job spans " + spannedRacks.size() + " racks: " + spannedRacks);
+
+		FinalApplicationStatus finalStatus = FinalApplicationStatus.SUCCEEDED;
+		String diagnostics = "";
+		try {
+			if (myConf.isSession()) {
+				runSession(ranksPerContainer);
+			} else if (myConf.isArray()) {
+				runArray(ranksPerContainer);
+			} else {
+				runJob(ranksPerContainer);
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			finalStatus = FinalApplicationStatus.FAILED;
+			diagnostics = String.valueOf(e.getMessage());
+		}
+
+		timer.begin("unregister");
+		if (binder != null) {
+			binder.close();
+		}
+		if (pmiServer != null) {
+			pmiServer.close();
+		}
+		if (output != null) {
+			output.close();
+		}
+		if (rankOutput != null) {
+			rankOutput.close();
+		}
+		if (logRelay != null) {
+			logRelay.close();
+		}
+		if (System.getenv(MyConf.EnvPathName) != null) {
+			dfs.delete(new Path(System.getenv(MyConf.EnvPathName)), false);
+		}
+		// the client reads the report as soon as it sees the application finish,
+		// and the AM may be torn down right after unregistering
+		timer.end("unregister");
+		writeTimingReport(finalStatus, diagnostics);
+		// Un-register with ResourceManager
+		rmClient.unregisterApplicationMaster(finalStatus, diagnostics, "");
+		nmClient.stop();
+		rmClient.stop();
+	}
+
+	private RankOutput openRankOutput(String outputPath) throws IOException {
+		if (!myConf.isRankOutput()) {
+			return null;
+		}
+		System.out.println("split output by rank into " + RankOutput.dirPath(outputPath));
+		return new RankOutput(dfs, conf, outputPath, myConf.getRollBytes(), myConf.getOutputCodec());
+	}
+
+	private void writeTimingReport(FinalApplicationStatus finalStatus, String diagnostics) {
+		if (binder != null) {
+			// an agent checks in once its container is localized and running
+			for (Map.Entry<String, Long> entry : binder.getFirstHellos().entrySet()) {
+				timer.container(entry.getKey(), "agentAt", entry.getValue());
+			}
+		}
+		timer.info("containerId", System.getenv(ApplicationConstants.Environment.CONTAINER_ID.name()));
+		timer.info("localityType", myConf.getLocalityType().name());
+		timer.info("numContainers", containers.size());
+		timer.info("finalStatus", finalStatus.name());
+		timer.info("diagnostics", diagnostics);
+		Path reportPath = PhaseTimer.reportPath(myConf.getOutputPath());
+		try {
+			timer.write(dfs, reportPath);
+			System.out.println("timing report written to " + reportPath);
+		} catch (IOException e) {
+			System.out.println("failed to write timing report " + reportPath + ": " + e.getMessage());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("AM Start");
+		ApplicationMasterAsync master = new ApplicationMasterAsync();
+		master.run();
+	}
 }
@@ -0,0 +1,205 @@
+package ai.fma.mpi_yarn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * Content-addressed store of job artifacts under the HDFS prefix:
+ *
+ *   <prefix>/cache/<sha256>/<name>     the artifact
+ *   <prefix>/cache/<sha256>/.lastuse   touched on every use, drives LRU eviction
+ *
+ * An unchanged artifact keeps its path and modification time, so it is not
+ * uploaded again and every NodeManager serves it from its PUBLIC cache.
+ * Uploads go to a temporary name and are renamed into place, so concurrent
+ * clients never observe a partial artifact.
+ */
+public class ArtifactCache {
+	public static String CACHE_DIR = "cache";
+	public static String LAST_USE = ".lastuse";
+	// entries used more recently than this are never evicted
+	public static long EVICT_GRACE_MS = 24L * 3600 * 1000;
+
+	// digests remembered by a long-running client such as SubmitDaemon
+	public static int MAX_DIGESTS = 1024;
+
+	// PUBLIC resources must be world readable, with executable parents
+	static FsPermission PUBLIC_DIR = new FsPermission((short) 0755);
+	static FsPermission PUBLIC_FILE = new FsPermission((short) 0755);
+
+	// local path, length and modification time -> sha256, guarded by itself
+	@SuppressWarnings("serial")
+	static LinkedHashMap<String, String> digests = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_DIGESTS;
+		}
+	};
+
+	FileSystem dfs;
+	Path root;
+	long maxBytes;
+	// where evictions are reported, the output of the mpi-run request
+	PrintStream out = System.out;
+
+	public ArtifactCache(FileSystem dfs, String hdfsPrefix, long maxBytes) throws IOException {
+		this.dfs = dfs;
+		this.root = new Path(hdfsPrefix + "/" + CACHE_DIR);
+		this.maxBytes = maxBytes;
+		if (!dfs.exists(root)) {
+			dfs.mkdirs(root);
+			dfs.setPermission(root, PUBLIC_DIR);
+		}
+	}
+
+	/** sha256 of the local file, read again only when its length or modification time changed */
+	public static String hash(String localPath) throws IOException {
+		File file = new File(localPath);
+		String key = file.getAbsolutePath() + " " + file.length() + " " + file.lastModified();
+		synchronized (digests) {
+			String digest = digests.get(key);
+			if (digest != null) {
+				return digest;
+			}
+		}
+		String digest;
+		InputStream in = new FileInputStream(localPath);
+		try {
+			digest = DigestUtils.sha256Hex(in);
+		} finally {
+			in.close();
+		}
+		synchronized (digests) {
+			digests.put(key, digest);
+		}
+		return digest;
+	}
+
+	private void touch(Path entry) throws IOException {
+		dfs.create(new Path(entry, LAST_USE), true).close();
+	}
+
+	public static class Artifact {
+		public Path path;
+		public long bytes;
+		public boolean uploaded;
+	}
+
+	/**
+	 * Return the cached HDFS path of the local file under the given name,
+	 * uploading it only if no artifact with the same content exists.
+	 */
+	public Path put(String localPath, String name) throws IOException {
+		return stage(localPath, name).path;
+	}
+
+	public Artifact stage(String localPath, String name) throws IOException {
+		return stage(hash(localPath), name, localPath);
+	}
+
+	/**
+	 * Return the artifact cached under the given content key, or null when it
+	 * has to be produced and staged first.
+	 */
+	public Artifact find(String key, String name) throws IOException {
+		Path entry = new Path(root, key);
+		Path target = new Path(entry, name);
+		if (!dfs.exists(target)) {
+			return null;
+		}
+		touch(entry);
+		Artifact artifact = new Artifact();
+		artifact.path = target;
+		artifact.bytes = dfs.getFileStatus(target).getLen();
+		return artifact;
+	}
+
+	/** stage the local file under a content key computed by the caller */
+	public Artifact stage(String key, String name, String localPath) throws IOException {
+		Path entry = new Path(root, key);
+		Path target = new Path(entry, name);
+		Artifact artifact = new Artifact();
+		artifact.path = target;
+		artifact.bytes = new File(localPath).length();
+		if (!dfs.exists(target)) {
+			artifact.uploaded = true;
+			if (!dfs.exists(entry)) {
+				dfs.mkdirs(entry);
+				dfs.setPermission(entry, PUBLIC_DIR);
+			}
+			Path tmp = new Path(entry, "." + name + "." + UUID.randomUUID() + ".tmp");
+			dfs.copyFromLocalFile(false, true, new Path(localPath), tmp);
+			dfs.setPermission(tmp, PUBLIC_FILE);
+			// another client may have won the race, its copy is identical
+			if (!dfs.rename(tmp, target)) {
+				dfs.delete(tmp, false);
+				if (!dfs.exists(target)) {
+					throw new IOException("failed to move " + tmp + " into " + target);
+				}
+			}
+		}
+		touch(entry);
+		return artifact;
+	}
+
+	private long lastUse(Path entry) throws IOException {
+		Path marker = new Path(entry, LAST_USE);
+		if (dfs.exists(marker)) {
+			return dfs.getFileStatus(marker).getModificationTime();
+		}
+		return dfs.getFileStatus(entry).getModificationTime();
+	}
+
+	/** delete least recently used entries until the cache fits in maxBytes */
+	public void evict() throws IOException {
+		if (maxBytes <= 0) {
+			return;
+		}
+		final ArrayList<FileStatus> entries = new ArrayList<FileStatus>();
+		final HashMap<Path, Long> lastUses = new HashMap<Path, Long>();
+		HashMap<Path, Long> sizes = new HashMap<Path, Long>();
+		long total = 0;
+		for (FileStatus entry : dfs.listStatus(root)) {
+			if (!entry.isDirectory()) {
+				continue;
+			}
+			entries.add(entry);
+			lastUses.put(entry.getPath(), lastUse(entry.getPath()));
+			sizes.put(entry.getPath(), dfs.getContentSummary(entry.getPath()).getLength());
+			total += sizes.get(entry.getPath());
+		}
+		if (total <= maxBytes) {
+			return;
+		}
+		Collections.sort(entries, new Comparator<FileStatus>() {
+			public int compare(FileStatus a, FileStatus b) {
+				return Long.compare(lastUses.get(a.getPath()), lastUses.get(b.getPath()));
+			}
+		});
+		long now = System.currentTimeMillis();
+		for (FileStatus entry : entries) {
+			if (total <= maxBytes || now - lastUses.get(entry.getPath()) < EVICT_GRACE_MS) {
+				break;
+			}
+			long bytes = sizes.get(entry.getPath());
+			out.println("[CLIENT] evict cached artifact " + entry.getPath() + " (" + bytes + " bytes)");
+			dfs.delete(entry.getPath(), true);
+			total -= bytes;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package ai.fma.mpi_yarn;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stages a set of local files and bundles into the artifact cache concurrently
+ * on a bounded upload pool. The first failing upload cancels the others.
+ */
+public class ArtifactStager {
+	ArtifactCache cache;
+	int numThreads;
+	LinkedHashMap<String, String> files = new LinkedHashMap<String, String>();
+	LinkedHashMap<String, List<String>> bundles = new LinkedHashMap<String, List<String>>();
+	// where the uploads are reported, the output of the mpi-run request
+	PrintStream out = System.out;
+
+	public ArtifactStager(ArtifactCache cache, int numThreads) {
+		this.cache = cache;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	private void log(String str) {
+		out.println("[CLIENT] " + str);
+	}
+
+	/** stage the local file under the given resource name */
+	public void add(String name, String localPath) {
+		files.put(name, localPath);
+	}
+
+	/** stage the local files as one SharedObjectBundle under the given resource name */
+	public void addBundle(String name, List<String> localPaths) {
+		bundles.put(name, localPaths);
+	}
+
+	private ArtifactCache.Artifact timed(String what, Callable<ArtifactCache.Artifact> stage)
+			throws Exception {
+		long start = System.nanoTime();
+		ArtifactCache.Artifact artifact = stage.call();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (artifact.uploaded) {
+			log(String.format("uploaded %s (%d bytes) to %s in %.2fs, %.1f MB/s", what, artifact.bytes,
+					artifact.path, seconds, artifact.bytes / 1048576.0 / seconds));
+		} else {
+			log(String.format("cached %s (%d bytes) at %s", what, artifact.bytes, artifact.path));
+		}
+		return artifact;
+	}
+
+	/** @return resource name -> staged artifact, in the order added */
+	public Map<String, ArtifactCache.Artifact> stageAll() throws InterruptedException {
+		LinkedHashMap<String, Callable<ArtifactCache.Artifact>> tasks = new LinkedHashMap<String, Callable<ArtifactCache.Artifact>>();
+		for (final Map.Entry<String, String> file : files.entrySet()) {
+			tasks.put(file.getKey(), new Callable<ArtifactCache.Artifact>() {
+				public ArtifactCache.Artifact call() throws Exception {
+					return cache.stage(file.getValue(), file.getKey());
+				}
+			});
+		}
+		for (final Map.Entry<String, List<String>> bundle : bundles.entrySet()) {
+			tasks.put(bundle.getKey(), new Callable<ArtifactCache.Artifact>() {
+				public ArtifactCache.Artifact call() throws Exception {
+					return SharedObjectBundle.stage(cache, bundle.getValue());
+				}
+			});
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, Math.max(1, tasks.size())));
+		ExecutorCompletionService<String> completion = new ExecutorCompletionService<String>(pool);
+		// keep the insertion order, the tasks fill in their slot
+		final LinkedHashMap<String, ArtifactCache.Artifact> staged = new LinkedHashMap<String, ArtifactCache.Artifact>();
+		for (String name : tasks.keySet()) {
+			staged.put(name, null);
+		}
+		for (final Map.Entry<String, Callable<ArtifactCache.Artifact>> task : tasks.entrySet()) {
+			final String what = files.containsKey(task.getKey()) ? files.get(task.getKey())
+					: "bundle " + task.getKey() + " " + bundles.get(task.getKey());
+			completion.submit(new Callable<String>() {
+				public String call() throws Exception {
+					try {
+						ArtifactCache.Artifact artifact = timed(what, task.getValue());
+						synchronized (staged) {
+							staged.put(task.getKey(), artifact);
+						}
+						return task.getKey();
+					} catch (Exception e) {
+						throw new RuntimeException("failed to stage " + what + ": " + e.getMessage(), e);
+					}
+				}
+			});
+		}
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					completion.take().get();
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return staged;
+	}
+}
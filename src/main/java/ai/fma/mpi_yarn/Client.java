@@ -2,10 +2,14 @@ package ai.fma.mpi_yarn;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
@@ -23,6 +27,7 @@ import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
 import org.apache.hadoop.yarn.api.records.LocalResource;
 import org.apache.hadoop.yarn.api.records.LocalResourceType;
 import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
+import org.apache.hadoop.yarn.api.records.NodeState;
 import org.apache.hadoop.yarn.api.records.Resource;
 import org.apache.hadoop.yarn.api.records.YarnApplicationState;
 import org.apache.hadoop.yarn.client.api.YarnClient;
@@ -33,27 +38,91 @@ import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.util.Records;
 
 public class Client {
+	// application type of every mpi-yarn AM, so that one report query covers all jobs
+	public static String APPLICATION_TYPE = "MPI_YARN";
+	// how long a finished job's timing report may take to become visible
+	public static int TIMING_REPORT_WAIT_MS = 5000;
 
 	Configuration conf = new YarnConfiguration();
 	FileSystem dfs;
 	MyConf myConf;
+	// where the progress and the job output go, and the environment the
+	// job inherits from; SubmitDaemon sets those of its caller
+	PrintStream out = System.out;
+	Map<String, String> env = System.getenv();
+	// 1 when the job of a session reported a failure
+	int exitCode = 0;
+
+	public Client() {
+	}
+
+	// submit to the given cluster instead of the one configured on the classpath
+	public Client(Configuration conf) {
+		this.conf = conf;
+	}
+
+	// share the file system of an embedding MpiYarnClient
+	Client(Configuration conf, FileSystem dfs) {
+		this.conf = conf;
+		this.dfs = dfs;
+	}
 
 	private void log(String str) {
-		System.out.println("[CLIENT] " + str);
+		out.println("[CLIENT] " + str);
 	}
 
 	public void run(String[] args) throws Exception {
-		dfs = FileSystem.get(conf);
-		myConf = new MyConf(args);
-		Path hdfsPrefix = new Path(myConf.getHdfsPrefix());
-		if (!dfs.exists(hdfsPrefix)) {
-			throw new RuntimeException("hdfsPrefix " + myConf.getHdfsPrefix() + " does not exist.");
-		}
+		long clientStartMs = System.currentTimeMillis();
+		parse(args);
 
 		// Create yarnClient
 		YarnClient yarnClient = YarnClient.createYarnClient();
 		yarnClient.init(conf);
 		yarnClient.start();
+		follow(yarnClient, clientStartMs);
+	}
+
+	/** run the parsed job through a started YarnClient and follow it to its end */
+	void follow(YarnClient yarnClient, long clientStartMs) throws Exception {
+		if (myConf.getAttachAppId() != null) {
+			attach(yarnClient);
+			return;
+		}
+
+		ApplicationId appId = submit(yarnClient, clientStartMs);
+
+		SessionQueue queue = null;
+		if (myConf.isSession()) {
+			queue = new SessionQueue(dfs, myConf.getHdfsPrefix(), appId.toString());
+		}
+		String[] done = followOutput(yarnClient, appId, new Path(myConf.getOutputPath()), queue,
+				SessionQueue.FIRST_JOB_ID);
+		printTimingSummary();
+		if (myConf.isArray()) {
+			printArrayStatus();
+		}
+		if (done != null) {
+			log("session " + appId + " is ready, submit more jobs with -attach " + appId);
+			reportDone(SessionQueue.FIRST_JOB_ID, done);
+		}
+	}
+
+	void parse(String[] args) throws IOException {
+		if (dfs == null) {
+			dfs = FileSystem.get(conf);
+		}
+		myConf = new MyConf(args, out);
+		Path hdfsPrefix = new Path(myConf.getHdfsPrefix());
+		if (!dfs.exists(hdfsPrefix)) {
+			throw new RuntimeException("hdfsPrefix " + myConf.getHdfsPrefix() + " does not exist.");
+		}
+	}
+
+	/** stage the parsed job and submit its AM, without waiting for the application */
+	ApplicationId submit(YarnClient yarnClient, long clientStartMs) throws Exception {
+		if (myConf.isRackFit()) {
+			fitRacks(yarnClient);
+		}
 
 		// Create application via yarnClient
 		YarnClientApplication app = yarnClient.createApplication();
@@ -61,51 +130,60 @@ public class Client {
 		// Set up the container launch context for the application master
 		ContainerLaunchContext amContainer = Records.newRecord(ContainerLaunchContext.class);
 		amContainer.setCommands(Collections
-				.singletonList("$JAVA_HOME/bin/java" + " -Xmx" + String.valueOf(myConf.getContainerMemoryMb()) + "M"
-						+ " ai.fma.mpi_yarn.ApplicationMaster" + " 1>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR
+				.singletonList("$JAVA_HOME/bin/java" + " -Xmx" + String.valueOf(myConf.getAmHeapMb()) + "M"
+						+ " ai.fma.mpi_yarn.ApplicationMasterAsync" + " 1>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR
 						+ "/stdout" + " 2>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stderr"));
 
-		// Copy required file
-
-		Map<String, LocalResource> localResources = new HashMap<String, LocalResource>();
-		{
-			Path localJarPath = new Path(myConf.getContainingJar());
-			Path hdfsJarPath = new Path(hdfsPrefix + "/mpi_yarn_am.jar");
-			log("copy local jar file " + myConf.getContainingJar() + " into " + hdfsJarPath.toUri().toString());
-			dfs.copyFromLocalFile(false, true, localJarPath, hdfsJarPath);
-			LocalResource appMasterJar = Records.newRecord(LocalResource.class);
-			MyConf.setupLocalResource(dfs, hdfsJarPath, appMasterJar);
-			localResources.put(hdfsJarPath.getName(), appMasterJar);
-		}
-		{
-			Path executablePath = new Path(hdfsPrefix + "/" + myConf.getExecutableName());
-			log("copy executable file " + myConf.getExecutablePath() + " into " + executablePath.toUri().toString());
-			dfs.copyFromLocalFile(false, true, new Path(myConf.getExecutablePath()), executablePath);
-		}
-		{
-			Path proxyPath = new Path(hdfsPrefix + "/" + MyConf.PMI_PROXY);
-			log("copy hydra proxy " + myConf.getHydraProxy() + " into " + proxyPath.toUri().toString());
-			dfs.copyFromLocalFile(false, true, new Path(myConf.getHydraProxy()), proxyPath);
-		}
-
-		{
+		// Copy required file into the content-addressed cache, unchanged
+		// artifacts are neither uploaded nor localized again
+		ArtifactCache cache = new ArtifactCache(dfs, myConf.getHdfsPrefix(), myConf.getCacheMaxBytes());
+		cache.out = out;
+		ArtifactStager stager = new ArtifactStager(cache, myConf.getUploadThreads());
+		stager.out = out;
+		String jarName = MyConf.AM_JAR;
+		stager.add(jarName, myConf.getContainingJar());
+		if (!myConf.isBundleExecutable()) {
+			stager.add(myConf.getExecutableName(), myConf.getExecutablePath());
+		}
+		// with -pmi the AM and the agents replace hydra
+		if (!myConf.isPmi()) {
+			stager.add(MyConf.PMI_PROXY, myConf.getHydraProxy());
 			// mpiexec should be a resource for AM
-			Path mpiexecPath = new Path(hdfsPrefix + "/" + MyConf.MPIEXEC);
-			log("copy mpiexec " + myConf.getHydraMpiexec() + " into " + mpiexecPath.toUri().toString());
-			dfs.copyFromLocalFile(false, true, new Path(myConf.getHydraMpiexec()), mpiexecPath);
-			LocalResource mpiexecResource = Records.newRecord(LocalResource.class);
-			MyConf.setupLocalResource(dfs, mpiexecPath, mpiexecResource);
-			localResources.put(MyConf.MPIEXEC, mpiexecResource);
+			stager.add(MyConf.MPIEXEC, myConf.getHydraMpiexec());
 		}
+		// shared objects travel as one archive, unpacked once per node into ./sofiles
+		ArrayList<String> bundled = new ArrayList<String>(myConf.getSharedObjectPathList());
+		if (myConf.isBundleExecutable()) {
+			bundled.add(myConf.getExecutablePath());
+		}
+		if (!bundled.isEmpty()) {
+			stager.addBundle(SharedObjectBundle.NAME, bundled);
+		}
+		long stageStart = System.currentTimeMillis();
+		Map<String, ArtifactCache.Artifact> staged = stager.stageAll();
+		long stagedAtMs = System.currentTimeMillis();
+		log("staged " + staged.size() + " artifacts in " + (System.currentTimeMillis() - stageStart) + "ms");
 
-		Path soPrefix = new Path(hdfsPrefix + "/sofiles/");
-		dfs.mkdirs(soPrefix);
-		for (String sofile : myConf.getSharedObjectPathList()) {
-			Path src = new Path(sofile);
-			Path target = new Path(hdfsPrefix + "/sofiles/" + src.getName());
-			log("copy shared object file " + src.toUri().toString() + " into " + target.toUri().toString());
-			dfs.copyFromLocalFile(false, true, src, target);
+		Map<String, LocalResource> localResources = new HashMap<String, LocalResource>();
+		for (Map.Entry<String, ArtifactCache.Artifact> entry : staged.entrySet()) {
+			String name = entry.getKey();
+			Path path = entry.getValue().path;
+			if (name.equals(jarName) || name.equals(MyConf.MPIEXEC)) {
+				LocalResource resource = Records.newRecord(LocalResource.class);
+				MyConf.setupLocalResource(dfs, path, resource);
+				localResources.put(name, resource);
+				// pipelined, pooled, live log and PMI rank containers run the ProxyAgent from the AM jar
+				if (name.equals(jarName) && (myConf.isPipelined() || myConf.isSession() || myConf.isArray()
+						|| myConf.isLiveLogs() || myConf.isPmi())) {
+					myConf.putContainerResource(name, path.toString());
+				}
+			} else if (name.equals(SharedObjectBundle.NAME)) {
+				myConf.putContainerArchive(name, path.toString());
+			} else {
+				myConf.putContainerResource(name, path.toString());
+			}
 		}
+		cache.evict();
 
 		// Setup jar for ApplicationMaster
 
@@ -122,83 +200,246 @@ public class Client {
 		HashSet<String> envList = myConf.getEnvList();
 		envList.add("JAVA_HOME");
 		envList.add("PATH");
-		appMasterEnv.put("CLASSPATH", System.getenv("CLASSPATH") + ":" + classPathEnv.toString());
-		for (String envName : System.getenv().keySet()) {
+		appMasterEnv.put("CLASSPATH", env.get("CLASSPATH") + ":" + classPathEnv.toString());
+		for (String envName : env.keySet()) {
 			if (envList.contains(envName)) {
-				appMasterEnv.put(envName, System.getenv(envName));
+				appMasterEnv.put(envName, env.get(envName));
 			}
 		}
-		// convey MyConf to AM via environment variable
-		appMasterEnv.put(MyConf.EnvName, MyConf.serialize(myConf));
+		myConf.setClientTimes(clientStartMs, stagedAtMs, System.currentTimeMillis());
+		// convey MyConf to AM via environment variable, or a side file when it is large
+		Path descriptorPath = new Path(myConf.getHdfsPrefix() + "/descriptors/"
+				+ app.getApplicationSubmissionContext().getApplicationId() + ".desc");
+		if (MyConf.export(myConf, dfs, descriptorPath, appMasterEnv) != null) {
+			log("job descriptor written to " + descriptorPath);
+		}
 		log("Environment: " + appMasterEnv.toString());
 		amContainer.setEnvironment(appMasterEnv);
 
 		// Set up resource type requirements for ApplicationMaster
 		Resource capability = Records.newRecord(Resource.class);
-		capability.setMemory(myConf.getContainerMemoryMb());
-		capability.setVirtualCores(1);
+		capability.setMemory(myConf.getAmMemoryMb());
+		capability.setVirtualCores(myConf.getAmVcores());
+		log("AM container: " + myConf.getAmMemoryMb() + "MB, " + myConf.getAmVcores() + " vcores, heap "
+				+ myConf.getAmHeapMb() + "MB");
 
 		// Finally, set-up ApplicationSubmissionContext for the application
 		ApplicationSubmissionContext appContext = app.getApplicationSubmissionContext();
 		appContext.setApplicationName("mpi_yarn"); // application name
+		appContext.setApplicationType(APPLICATION_TYPE);
 		appContext.setAMContainerSpec(amContainer);
 		appContext.setResource(capability);
 		appContext.setQueue(myConf.getQueueName()); // queue
 
 		// Submit application
 		ApplicationId appId = appContext.getApplicationId();
-		System.out.println("submitting application " + appId + " to queue " + myConf.getQueueName());
-		System.out.println("output location = " + myConf.getOutputPath());
+		out.println("submitting application " + appId + " to queue " + myConf.getQueueName());
+		out.println("output location = " + myConf.getOutputPath());
+		if (myConf.isRankOutput()) {
+			out.println("per-rank output location = " + RankOutput.dirPath(myConf.getOutputPath()));
+		}
+		if (myConf.isLiveLogs()) {
+			out.println("live container log = " + LogRelay.livePath(myConf.getOutputPath()));
+		}
 		yarnClient.submitApplication(appContext);
+		return appId;
+	}
 
+	// the AM writes the report just before it unregisters, a session keeps running
+	private void printTimingSummary() throws InterruptedException {
+		Path reportPath = PhaseTimer.reportPath(myConf.getOutputPath());
+		long deadline = System.currentTimeMillis() + (myConf.isSession() ? 0 : TIMING_REPORT_WAIT_MS);
+		try {
+			while (!dfs.exists(reportPath) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(200);
+			}
+			if (dfs.exists(reportPath)) {
+				log("timing: " + PhaseTimer.summary(PhaseTimer.read(dfs, reportPath)) + " (" + reportPath + ")");
+			}
+		} catch (IOException e) {
+			log("failed to read timing report " + reportPath + ": " + e.getMessage());
+		}
+	}
+
+	// one line per task of a job array: index, exit code, output file
+	private void printArrayStatus() throws IOException {
+		Path statusPath = new Path(myConf.getOutputPath() + ApplicationMasterAsync.ARRAY_STATUS_SUFFIX);
+		if (!dfs.exists(statusPath)) {
+			log("job array ended without a task status");
+			return;
+		}
+		log("job array task status (" + statusPath + "):");
+		FSDataInputStream in = dfs.open(statusPath);
+		try {
+			Scanner scanner = new Scanner(in, "UTF-8");
+			while (scanner.hasNextLine()) {
+				log("   " + scanner.nextLine());
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// resolve -rackfit into the fewest racks that can hold the job right now
+	private void fitRacks(YarnClient yarnClient) throws Exception {
+		Resource capability = Records.newRecord(Resource.class);
+		capability.setMemory(myConf.getContainerMemoryMb() * myConf.getRanksPerContainer());
+		capability.setVirtualCores(myConf.getRankVcores() * myConf.getRanksPerContainer());
+		List<String> racks;
+		if (myConf.getLocalityType() == LocalityType.NONE) {
+			racks = RackPlanner.fewestRacks(yarnClient.getNodeReports(NodeState.RUNNING), capability,
+					myConf.getAllocProcs(), 1, false);
+		} else {
+			int groupSize = myConf.getLocalityType() == LocalityType.GROUP ? myConf.getNumProcsPerNode() : 1;
+			racks = RackPlanner.fewestRacks(yarnClient.getNodeReports(NodeState.RUNNING), capability,
+					myConf.getAllocNodes(), groupSize, true);
+		}
+		if (racks == null) {
+			log("no rack set has enough free resources right now, not confining the job");
+			return;
+		}
+		log("confining the job to racks " + racks);
+		myConf.setRacks(racks);
+	}
+
+	private void reportDone(String jobId, String[] done) {
+		out.println("Job " + jobId + " finished with exit code " + done[0]
+				+ (done.length > 1 && !done[1].isEmpty() ? ": " + done[1] : ""));
+		if (!done[0].equals("0")) {
+			exitCode = 1;
+		}
+	}
+
+	/**
+	 * Copy what was appended to the file since offset, up to one buffer, to
+	 * out; returns the new offset.
+	 */
+	static long tail(FileSystem dfs, Path path, long offset, byte[] buffer, OutputStream out) throws IOException {
+		if (!dfs.exists(path)) {
+			return offset;
+		}
+		FSDataInputStream inputStream = dfs.open(path);
+		try {
+			int readBytes = inputStream.read(offset, buffer, 0, buffer.length);
+			if (readBytes == -1) {
+				return offset;
+			}
+			out.write(buffer, 0, readBytes);
+			out.flush();
+			return offset + readBytes;
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	private long printNew(Path path, long offset, byte[] buffer) throws IOException {
+		return tail(dfs, path, offset, buffer, out);
+	}
+
+	/**
+	 * Print the output file, and the live container log if any, as they grow
+	 * until the application ends or, with a session queue, until the job is
+	 * done; returns the done status of the job or null when the application
+	 * ended first.
+	 */
+	private String[] followOutput(YarnClient yarnClient, ApplicationId appId, Path outputPath, SessionQueue queue,
+			String jobId) throws Exception {
 		ApplicationReport appReport = yarnClient.getApplicationReport(appId);
 		YarnApplicationState appState = appReport.getYarnApplicationState();
-		long outputOffset = 0;
+		String[] done = null;
+		ArrayList<Path> paths = new ArrayList<Path>();
+		paths.add(outputPath);
+		if (myConf.isLiveLogs() && myConf.getAttachAppId() == null) {
+			paths.add(LogRelay.livePath(outputPath.toString()));
+		}
+		long[] offsets = new long[paths.size()];
 		int bufferSize = 1024 * 1024;
 		byte[] buffer = new byte[bufferSize];
 		while (appState != YarnApplicationState.FINISHED && appState != YarnApplicationState.KILLED
-				&& appState != YarnApplicationState.FAILED) {
+				&& appState != YarnApplicationState.FAILED && done == null) {
 			Thread.sleep(100);
+			if (out.checkError()) {
+				// nobody reads the output anymore, the application keeps running
+				throw new IOException("output of " + appId + " closed");
+			}
 			appReport = yarnClient.getApplicationReport(appId);
 			appState = appReport.getYarnApplicationState();
-			Path outputPath = new Path(myConf.getOutputPath());
-			if (dfs.exists(outputPath)) {
-				FSDataInputStream inputStream = dfs.open(outputPath);
-				int readBytes = inputStream.read(outputOffset, buffer, 0, bufferSize);
-				if (readBytes != -1) {
-					String nextChunk = new String(buffer, 0, readBytes, StandardCharsets.UTF_8);
-					System.out.print(nextChunk);
-					outputOffset += readBytes;
-				}
-				inputStream.close();
+			if (queue != null) {
+				done = queue.readDone(jobId);
+			}
+			for (int i = 0; i < paths.size(); i++) {
+				offsets[i] = printNew(paths.get(i), offsets[i], buffer);
 			}
 		}
 
-		// use sleep because we have to wait for AM's write to HDFS visible
-		Thread.sleep(3000);
-		Path outputPath = new Path(myConf.getOutputPath());
-		if (dfs.exists(outputPath)) {
-			while (true) {
-				FSDataInputStream inputStream = dfs.open(outputPath);
-				int readBytes = inputStream.read(outputOffset, buffer, 0, bufferSize);
-				if (readBytes != -1) {
-					String nextChunk = new String(buffer, 0, readBytes, StandardCharsets.UTF_8);
-					System.out.print(nextChunk);
-					outputOffset += readBytes;
-				} else {
-					inputStream.close();
-					break;
-				}
-			}
+		// use sleep because we have to wait for AM's write to HDFS visible,
+		// a session job closes its output before it is marked done
+		if (done == null) {
+			Thread.sleep(3000);
+		}
+		for (int i = 0; i < paths.size(); i++) {
+			long offset;
+			do {
+				offset = offsets[i];
+				offsets[i] = printNew(paths.get(i), offset, buffer);
+			} while (offsets[i] != offset);
 		}
 
-		System.out.println(
-				"Application " + appId + " finished with" + " state " + appState + " at " + appReport.getFinishTime());
+		if (done == null) {
+			out.println("Application " + appId + " finished with" + " state " + appState + " at "
+					+ appReport.getFinishTime());
+		}
+		return done;
+	}
 
+	/**
+	 * Submit the job to the queue of a running session AM instead of starting
+	 * a new application. Only the executable is staged; the shared objects and
+	 * the container env are those the session was started with.
+	 */
+	private void attach(YarnClient yarnClient) throws Exception {
+		ApplicationId appId = ConverterUtils.toApplicationId(myConf.getAttachAppId());
+		YarnApplicationState appState = yarnClient.getApplicationReport(appId).getYarnApplicationState();
+		if (appState != YarnApplicationState.RUNNING) {
+			throw new RuntimeException("session " + appId + " is " + appState);
+		}
+		ArtifactCache cache = new ArtifactCache(dfs, myConf.getHdfsPrefix(), myConf.getCacheMaxBytes());
+		cache.out = out;
+		SessionJob job = new SessionJob();
+		job.id = SessionQueue.newJobId();
+		job.executablePath = cache.put(myConf.getExecutablePath(), myConf.getExecutableName()).toString();
+		job.executableName = myConf.getExecutableName();
+		job.executableArgs = myConf.getExecutableArgs();
+		for (String envName : myConf.getEnvList()) {
+			if (env.get(envName) != null) {
+				job.env.put(envName, env.get(envName));
+			}
+		}
+		job.numRanks = myConf.getNumRanks();
+		job.outputPath = myConf.getOutputPath();
+		SessionQueue queue = new SessionQueue(dfs, myConf.getHdfsPrefix(), appId.toString());
+		queue.submit(job);
+		log("submitted job " + job.id + " to session " + appId);
+		out.println("output location = " + myConf.getOutputPath());
+		if (myConf.isRankOutput()) {
+			out.println("per-rank output location = " + RankOutput.dirPath(myConf.getOutputPath()));
+		}
+		String[] done = followOutput(yarnClient, appId, new Path(myConf.getOutputPath()), queue, job.id);
+		if (done != null) {
+			reportDone(job.id, done);
+		}
 	}
 
 	public static void main(String[] args) throws Exception {
 		Client c = new Client();
-		c.run(args);
+		try {
+			c.run(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+		if (c.exitCode != 0) {
+			System.exit(c.exitCode);
+		}
 	}
 }
@@ -0,0 +1,128 @@
+package ai.fma.mpi_yarn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
+
+/**
+ * Starts a batch of containers concurrently through NMClientAsync, keeping at
+ * most maxInFlightPerNode start requests outstanding against each NodeManager.
+ * The owner forwards the NMClientAsync start callbacks to onStarted/onFailed.
+ */
+public class ContainerLauncher {
+	static class Launch {
+		Container container;
+		ContainerLaunchContext ctx;
+		long startNanos;
+
+		Launch(Container container, ContainerLaunchContext ctx) {
+			this.container = container;
+			this.ctx = ctx;
+		}
+	}
+
+	NMClientAsync nmClient;
+	int maxInFlightPerNode;
+
+	// state below is guarded by this
+	HashMap<String, LinkedList<Launch>> pending = new HashMap<String, LinkedList<Launch>>();
+	HashMap<String, Integer> inFlight = new HashMap<String, Integer>();
+	HashMap<ContainerId, Launch> started = new HashMap<ContainerId, Launch>();
+	ArrayList<Long> latenciesMs = new ArrayList<Long>();
+	LinkedHashMap<ContainerId, Throwable> failures = new LinkedHashMap<ContainerId, Throwable>();
+	int numLaunches = 0;
+	int numFinished = 0;
+
+	public ContainerLauncher(NMClientAsync nmClient, int maxInFlightPerNode) {
+		this.nmClient = nmClient;
+		this.maxInFlightPerNode = Math.max(1, maxInFlightPerNode);
+	}
+
+	public synchronized void add(Container container, ContainerLaunchContext ctx) {
+		String host = container.getNodeId().getHost();
+		if (!pending.containsKey(host)) {
+			pending.put(host, new LinkedList<Launch>());
+			inFlight.put(host, 0);
+		}
+		pending.get(host).add(new Launch(container, ctx));
+		numLaunches++;
+	}
+
+	/** start the first window of every node, the rest is started from the callbacks */
+	public synchronized void launchAll() {
+		for (String host : pending.keySet()) {
+			dispatch(host);
+		}
+	}
+
+	private void dispatch(String host) {
+		LinkedList<Launch> queue = pending.get(host);
+		while (!queue.isEmpty() && inFlight.get(host) < maxInFlightPerNode) {
+			Launch launch = queue.removeFirst();
+			inFlight.put(host, inFlight.get(host) + 1);
+			started.put(launch.container.getId(), launch);
+			launch.startNanos = System.nanoTime();
+			System.out.println("Launching container " + launch.container.getId() + " with cmd "
+					+ launch.ctx.getCommands().get(0));
+			nmClient.startContainerAsync(launch.container, launch.ctx);
+		}
+	}
+
+	private void finish(ContainerId containerId, Throwable t) {
+		Launch launch = started.remove(containerId);
+		if (launch == null) {
+			return;
+		}
+		latenciesMs.add((System.nanoTime() - launch.startNanos) / 1000000);
+		if (t != null) {
+			failures.put(containerId, t);
+		}
+		numFinished++;
+		String host = launch.container.getNodeId().getHost();
+		inFlight.put(host, inFlight.get(host) - 1);
+		dispatch(host);
+		notifyAll();
+	}
+
+	public synchronized void onStarted(ContainerId containerId) {
+		finish(containerId, null);
+	}
+
+	public synchronized void onFailed(ContainerId containerId, Throwable t) {
+		finish(containerId, t);
+	}
+
+	public synchronized void awaitLaunched() throws InterruptedException {
+		while (numFinished < numLaunches) {
+			wait();
+		}
+	}
+
+	public synchronized Map<ContainerId, Throwable> getFailures() {
+		return new LinkedHashMap<ContainerId, Throwable>(failures);
+	}
+
+	private static long percentile(ArrayList<Long> sorted, double p) {
+		int index = (int) Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+	}
+
+	public synchronized String getLatencyReport() {
+		if (latenciesMs.isEmpty()) {
+			return "no container launched";
+		}
+		ArrayList<Long> sorted = new ArrayList<Long>(latenciesMs);
+		Collections.sort(sorted);
+		return "launched " + numLaunches + " containers (" + failures.size() + " failed); start latency p50="
+				+ percentile(sorted, 0.5) + "ms p90=" + percentile(sorted, 0.9) + "ms p99="
+				+ percentile(sorted, 0.99) + "ms max=" + sorted.get(sorted.size() - 1) + "ms";
+	}
+}
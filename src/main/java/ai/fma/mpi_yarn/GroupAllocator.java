@@ -0,0 +1,257 @@
+package ai.fma.mpi_yarn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.client.api.AMRMClient.ContainerRequest;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+import org.apache.hadoop.yarn.util.Records;
+
+/**
+ * Allocates numGroups hosts holding groupSize containers each (GROUP mode).
+ *
+ * Requests are issued in batches: relaxed ANY requests for the groups nobody
+ * has started yet, plus node-specific requests (relaxLocality off) for the
+ * hosts that already hold a partial group. The ANY batch is over-asked by a
+ * margin that follows the fraction of containers wasted so far, and
+ * containers landing on a host whose group is already full are released
+ * right away. With constrainRacks() the ANY batch is confined to a set of
+ * racks until relaxRacks() lifts the constraint.
+ */
+public class GroupAllocator {
+	// lower bound of the over-ask margin
+	public static double MIN_MARGIN = 0.1;
+	// upper bound of the over-ask margin
+	public static double MAX_MARGIN = 1.0;
+
+	AMRMClientAsync<ContainerRequest> rmClient;
+	Resource capability;
+	int numGroups;
+	int groupSize;
+	// ANY requests and node-specific requests must not share a priority
+	Priority anyPriority;
+	Priority nodePriority;
+	// racks the relaxed requests are confined to, null for any rack
+	String[] racks = null;
+
+	LinkedHashMap<String, ArrayList<Container>> hostContainers = new LinkedHashMap<String, ArrayList<Container>>();
+	HashSet<String> fullHosts = new HashSet<String>();
+	ArrayList<ContainerRequest> anyAsks = new ArrayList<ContainerRequest>();
+	HashMap<String, ArrayList<ContainerRequest>> nodeAsks = new HashMap<String, ArrayList<ContainerRequest>>();
+	ArrayList<Container> acquired = new ArrayList<Container>();
+	int numAllocated = 0;
+	int numWasted = 0;
+	boolean done = false;
+
+	public GroupAllocator(AMRMClientAsync<ContainerRequest> rmClient, Resource capability, int basePriority,
+			int numGroups, int groupSize) {
+		this.rmClient = rmClient;
+		this.capability = capability;
+		this.numGroups = numGroups;
+		this.groupSize = groupSize;
+		anyPriority = Records.newRecord(Priority.class);
+		anyPriority.setPriority(basePriority);
+		nodePriority = Records.newRecord(Priority.class);
+		nodePriority.setPriority(basePriority + 1);
+	}
+
+	/** confine the relaxed requests to the racks, call before start() */
+	public synchronized void constrainRacks(String[] racks) {
+		this.racks = racks;
+	}
+
+	/** lift the rack constraint, the relaxed requests move to a fresh priority */
+	public synchronized void relaxRacks() {
+		if (racks == null || done) {
+			return;
+		}
+		resize(anyAsks, 0, null, null, anyPriority, false);
+		racks = null;
+		Priority relaxed = Records.newRecord(Priority.class);
+		relaxed.setPriority(nodePriority.getPriority() + 1);
+		anyPriority = relaxed;
+		rebalance();
+	}
+
+	public synchronized void start() {
+		rebalance();
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized int getNumComplete() {
+		return fullHosts.size();
+	}
+
+	public synchronized int getNumWasted() {
+		return numWasted;
+	}
+
+	double margin() {
+		if (numAllocated == 0) {
+			return MIN_MARGIN;
+		}
+		return Math.max(MIN_MARGIN, Math.min(MAX_MARGIN, (double) numWasted / numAllocated));
+	}
+
+	private void release(Container container, String reason) {
+		System.out.println("Releasing " + reason + " container " + container.getId());
+		rmClient.releaseAssignedContainer(container.getId());
+		numWasted++;
+	}
+
+	// drop the ask the container satisfied; only a container at the ANY
+	// priority counts against the ANY batch, one at a withdrawn priority
+	// satisfied nothing that is still asked for
+	private void dropAsk(Container container) {
+		String host = container.getNodeId().getHost();
+		if (container.getPriority().equals(anyPriority)) {
+			if (!anyAsks.isEmpty()) {
+				rmClient.removeContainerRequest(anyAsks.remove(0));
+			}
+			return;
+		}
+		if (!container.getPriority().equals(nodePriority)) {
+			return;
+		}
+		if (nodeAsks.containsKey(host) && !nodeAsks.get(host).isEmpty()) {
+			rmClient.removeContainerRequest(nodeAsks.get(host).remove(0));
+			return;
+		}
+		// the asks of the host were resized away, look up the node ask by priority
+		for (Collection<ContainerRequest> matching : rmClient.getMatchingRequests(nodePriority, host, capability)) {
+			for (ContainerRequest ask : matching) {
+				for (ArrayList<ContainerRequest> asks : nodeAsks.values()) {
+					if (asks.remove(ask)) {
+						rmClient.removeContainerRequest(ask);
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/** @return true once numGroups groups are complete */
+	public synchronized boolean onAllocated(List<Container> allocated) {
+		for (Container container : allocated) {
+			numAllocated++;
+			dropAsk(container);
+			String host = container.getNodeId().getHost();
+			if (done || fullHosts.contains(host)) {
+				release(container, "surplus");
+				continue;
+			}
+			System.out.println("Acquired container " + container.getId() + " at host " + host);
+			if (!hostContainers.containsKey(host)) {
+				hostContainers.put(host, new ArrayList<Container>());
+			}
+			hostContainers.get(host).add(container);
+			acquired.add(container);
+			if (hostContainers.get(host).size() == groupSize) {
+				fullHosts.add(host);
+				System.out.println("Group " + fullHosts.size() + "/" + numGroups + " complete at host " + host);
+				if (fullHosts.size() == numGroups) {
+					done = true;
+				}
+			}
+		}
+		rebalance();
+		return done;
+	}
+
+	/** containers kept since the last call, they may still be released by finish() */
+	public synchronized List<Container> takeAcquired() {
+		ArrayList<Container> taken = acquired;
+		acquired = new ArrayList<Container>();
+		return taken;
+	}
+
+	private void resize(ArrayList<ContainerRequest> asks, int target, String[] nodes, String[] racks,
+			Priority priority, boolean relaxLocality) {
+		while (asks.size() > target) {
+			rmClient.removeContainerRequest(asks.remove(asks.size() - 1));
+		}
+		while (asks.size() < target) {
+			ContainerRequest ask = new ContainerRequest(capability, nodes, racks, priority, relaxLocality);
+			rmClient.addContainerRequest(ask);
+			asks.add(ask);
+		}
+	}
+
+	private void rebalance() {
+		if (done) {
+			resize(anyAsks, 0, null, null, anyPriority, true);
+			for (ArrayList<ContainerRequest> asks : nodeAsks.values()) {
+				resize(asks, 0, null, null, nodePriority, false);
+			}
+			return;
+		}
+		// the partial hosts closest to a full group are completed first
+		ArrayList<String> partialHosts = new ArrayList<String>();
+		for (String host : hostContainers.keySet()) {
+			if (!fullHosts.contains(host)) {
+				partialHosts.add(host);
+			}
+		}
+		Collections.sort(partialHosts, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return hostContainers.get(b).size() - hostContainers.get(a).size();
+			}
+		});
+		int missingGroups = numGroups - fullHosts.size();
+		List<String> targets = partialHosts.subList(0, Math.min(missingGroups, partialHosts.size()));
+		int nodeNeed = 0;
+		for (String host : partialHosts) {
+			if (!nodeAsks.containsKey(host)) {
+				nodeAsks.put(host, new ArrayList<ContainerRequest>());
+			}
+			int want = targets.contains(host) ? groupSize - hostContainers.get(host).size() : 0;
+			resize(nodeAsks.get(host), want, new String[] { host }, null, nodePriority, false);
+			nodeNeed += want;
+		}
+		for (String host : fullHosts) {
+			if (nodeAsks.containsKey(host)) {
+				resize(nodeAsks.get(host), 0, null, null, nodePriority, false);
+			}
+		}
+		// node-specific asks may never be satisfied if the host fills up, so
+		// the relaxed batch also covers a margin of them
+		double margin = margin();
+		int freshNeed = (missingGroups - targets.size()) * groupSize;
+		int anyTarget = (int) Math.ceil(freshNeed * (1 + margin) + nodeNeed * margin);
+		resize(anyAsks, anyTarget, null, racks, anyPriority, racks == null);
+	}
+
+	/**
+	 * Withdraw outstanding asks, release the containers of incomplete groups
+	 * and return the complete groups.
+	 */
+	public synchronized Map<String, ArrayList<Container>> finish() {
+		done = true;
+		rebalance();
+		LinkedHashMap<String, ArrayList<Container>> groups = new LinkedHashMap<String, ArrayList<Container>>();
+		for (Map.Entry<String, ArrayList<Container>> entry : hostContainers.entrySet()) {
+			if (fullHosts.contains(entry.getKey())) {
+				groups.put(entry.getKey(), entry.getValue());
+			} else {
+				for (Container container : entry.getValue()) {
+					release(container, "redundant");
+				}
+			}
+		}
+		System.out.println("group allocation: " + numAllocated + " containers allocated, " + numWasted + " wasted");
+		return groups;
+	}
+}
@@ -0,0 +1,217 @@
+package ai.fma.mpi_yarn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact, versioned binary encoding of the job description passed from the
+ * client to the AM.
+ *
+ * Layout: magic "MJ", format version (1 byte), flags (1 byte, bit 0 =
+ * deflated body), then the body: a sequence of fields, each a tag (varint),
+ * a length (varint) and the value bytes.
+ *
+ * Schema evolution: a field keeps its tag forever; readers skip tags they do
+ * not know and use a default for tags that are missing, so fields can be
+ * added freely. Only an incompatible change of an existing field bumps
+ * VERSION, which older readers reject.
+ */
+public class JobDescriptor {
+	public static int VERSION = 1;
+	static byte MAGIC0 = 'M';
+	static byte MAGIC1 = 'J';
+	static int FLAG_DEFLATED = 1;
+	// bodies smaller than this are not worth deflating
+	static int DEFLATE_THRESHOLD = 256;
+
+	public static class Writer {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		private static void writeVarint(ByteArrayOutputStream out, long value) {
+			while ((value & ~0x7FL) != 0) {
+				out.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+
+		private Writer put(int tag, byte[] value) {
+			writeVarint(body, tag);
+			writeVarint(body, value.length);
+			body.write(value, 0, value.length);
+			return this;
+		}
+
+		public Writer putLong(int tag, long value) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			// zigzag, so that -1 stays one byte
+			writeVarint(out, (value << 1) ^ (value >> 63));
+			return put(tag, out.toByteArray());
+		}
+
+		public Writer putInt(int tag, int value) {
+			return putLong(tag, value);
+		}
+
+		public Writer putBoolean(int tag, boolean value) {
+			return putLong(tag, value ? 1 : 0);
+		}
+
+		public Writer putString(int tag, String value) {
+			if (value == null) {
+				return this;
+			}
+			return put(tag, value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		public Writer putStringList(int tag, List<String> values) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeVarint(out, values.size());
+			for (String value : values) {
+				byte[] data = value.getBytes(StandardCharsets.UTF_8);
+				writeVarint(out, data.length);
+				out.write(data, 0, data.length);
+			}
+			return put(tag, out.toByteArray());
+		}
+
+		public Writer putStringMap(int tag, Map<String, String> values) {
+			ArrayList<String> flat = new ArrayList<String>();
+			for (Map.Entry<String, String> entry : values.entrySet()) {
+				flat.add(entry.getKey());
+				flat.add(entry.getValue());
+			}
+			return putStringList(tag, flat);
+		}
+
+		public byte[] toByteArray() throws IOException {
+			byte[] data = body.toByteArray();
+			int flags = 0;
+			if (data.length >= DEFLATE_THRESHOLD) {
+				ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+				DeflaterOutputStream out = new DeflaterOutputStream(deflated);
+				out.write(data);
+				out.close();
+				if (deflated.size() < data.length) {
+					data = deflated.toByteArray();
+					flags |= FLAG_DEFLATED;
+				}
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(MAGIC0);
+			out.write(MAGIC1);
+			out.write(VERSION);
+			out.write(flags);
+			out.write(data, 0, data.length);
+			return out.toByteArray();
+		}
+	}
+
+	public static class Reader {
+		HashMap<Integer, byte[]> fields = new HashMap<Integer, byte[]>();
+
+		private static long readVarint(DataInputStream in) throws IOException {
+			long value = 0;
+			int shift = 0;
+			while (true) {
+				int b = in.readUnsignedByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+				shift += 7;
+				if (shift > 63) {
+					throw new IOException("malformed varint in job descriptor");
+				}
+			}
+		}
+
+		public Reader(byte[] data) throws IOException {
+			if (data.length < 4 || data[0] != MAGIC0 || data[1] != MAGIC1) {
+				throw new IOException("not a job descriptor");
+			}
+			if (data[2] != VERSION) {
+				throw new IOException("unsupported job descriptor version " + data[2] + ", expected " + VERSION);
+			}
+			InputStream body = new ByteArrayInputStream(data, 4, data.length - 4);
+			if ((data[3] & FLAG_DEFLATED) != 0) {
+				body = new InflaterInputStream(body);
+			}
+			DataInputStream in = new DataInputStream(body);
+			while (true) {
+				long tag;
+				try {
+					tag = readVarint(in);
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] value = new byte[(int) readVarint(in)];
+				in.readFully(value);
+				fields.put((int) tag, value);
+			}
+		}
+
+		public boolean has(int tag) {
+			return fields.containsKey(tag);
+		}
+
+		public long getLong(int tag, long defaultValue) throws IOException {
+			if (!has(tag)) {
+				return defaultValue;
+			}
+			long zigzag = readVarint(new DataInputStream(new ByteArrayInputStream(fields.get(tag))));
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		public int getInt(int tag, int defaultValue) throws IOException {
+			return (int) getLong(tag, defaultValue);
+		}
+
+		public boolean getBoolean(int tag, boolean defaultValue) throws IOException {
+			return getLong(tag, defaultValue ? 1 : 0) != 0;
+		}
+
+		public String getString(int tag, String defaultValue) {
+			if (!has(tag)) {
+				return defaultValue;
+			}
+			return new String(fields.get(tag), StandardCharsets.UTF_8);
+		}
+
+		public ArrayList<String> getStringList(int tag) throws IOException {
+			ArrayList<String> values = new ArrayList<String>();
+			if (!has(tag)) {
+				return values;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(fields.get(tag)));
+			long size = readVarint(in);
+			for (long i = 0; i < size; i++) {
+				byte[] data = new byte[(int) readVarint(in)];
+				in.readFully(data);
+				values.add(new String(data, StandardCharsets.UTF_8));
+			}
+			return values;
+		}
+
+		public LinkedHashMap<String, String> getStringMap(int tag) throws IOException {
+			ArrayList<String> flat = getStringList(tag);
+			LinkedHashMap<String, String> values = new LinkedHashMap<String, String>();
+			for (int i = 0; i + 1 < flat.size(); i += 2) {
+				values.put(flat.get(i), flat.get(i + 1));
+			}
+			return values;
+		}
+	}
+}
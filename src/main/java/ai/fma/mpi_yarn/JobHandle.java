@@ -0,0 +1,180 @@
+package ai.fma.mpi_yarn;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.ApplicationReport;
+import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
+import org.apache.hadoop.yarn.api.records.YarnApplicationState;
+
+/**
+ * A job submitted through MpiYarnClient. get() waits for the final status
+ * of the application; cancel() kills it, or keeps it from being submitted.
+ */
+public class JobHandle implements Future<FinalApplicationStatus> {
+	public interface Listener {
+		/** called on the poller thread for every state change, the last one is FINISHED, FAILED or KILLED */
+		void onStateChanged(JobHandle job, YarnApplicationState state);
+	}
+
+	MpiYarnClient client;
+	JobSpec spec;
+	// read and advanced by the poller thread only
+	long outputOffset = 0;
+
+	// state below is guarded by this
+	ApplicationId appId = null;
+	Path outputPath = null;
+	YarnApplicationState state = null;
+	FinalApplicationStatus finalStatus = null;
+	String diagnostics = "";
+	Exception error = null;
+	boolean cancelled = false;
+	boolean done = false;
+
+	JobHandle(MpiYarnClient client, JobSpec spec) {
+		this.client = client;
+		this.spec = spec;
+	}
+
+	/** null until the application is submitted */
+	public synchronized ApplicationId getApplicationId() {
+		return appId;
+	}
+
+	/** last state seen by the poller, null until the RM reported one */
+	public synchronized YarnApplicationState getState() {
+		return state;
+	}
+
+	public synchronized String getDiagnostics() {
+		return diagnostics;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		ApplicationId toKill;
+		synchronized (this) {
+			if (done || cancelled) {
+				return false;
+			}
+			cancelled = true;
+			toKill = appId;
+		}
+		if (toKill != null) {
+			client.kill(toKill);
+		}
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized FinalApplicationStatus get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return result();
+	}
+
+	public synchronized FinalApplicationStatus get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!done) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new TimeoutException("job " + appId + " still " + state);
+			}
+			wait(remaining);
+		}
+		return result();
+	}
+
+	private FinalApplicationStatus result() throws ExecutionException {
+		if (error != null) {
+			throw new ExecutionException(error);
+		}
+		if (cancelled && finalStatus != FinalApplicationStatus.SUCCEEDED) {
+			throw new CancellationException("job " + appId + " was cancelled");
+		}
+		return finalStatus;
+	}
+
+	/** @return false if the job was cancelled meanwhile and must be killed */
+	synchronized boolean submitted(ApplicationId appId, Path outputPath) {
+		this.appId = appId;
+		this.outputPath = outputPath;
+		return !cancelled;
+	}
+
+	synchronized Path getOutputPath() {
+		return outputPath;
+	}
+
+	void failed(Exception e) {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			error = e;
+			done = true;
+			notifyAll();
+		}
+		if (spec.listener != null) {
+			spec.listener.onStateChanged(this, YarnApplicationState.FAILED);
+		}
+	}
+
+	/**
+	 * Record the report of the poller; the final state is only announced by
+	 * finish(), once the output is copied, so a listener may call get().
+	 *
+	 * @return true once the application reached a final state
+	 */
+	boolean update(ApplicationReport report) {
+		YarnApplicationState newState = report.getYarnApplicationState();
+		boolean last = newState == YarnApplicationState.FINISHED || newState == YarnApplicationState.FAILED
+				|| newState == YarnApplicationState.KILLED;
+		boolean changed;
+		synchronized (this) {
+			changed = newState != state;
+			state = newState;
+			if (last) {
+				finalStatus = report.getFinalApplicationStatus();
+				diagnostics = report.getDiagnostics();
+			}
+		}
+		if (changed && !last && spec.listener != null) {
+			spec.listener.onStateChanged(this, newState);
+		}
+		return last;
+	}
+
+	void finish() {
+		YarnApplicationState finalState;
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			done = true;
+			if (state == null) {
+				// cancelled before it was submitted
+				state = YarnApplicationState.KILLED;
+			}
+			finalState = state;
+			notifyAll();
+		}
+		if (spec.listener != null) {
+			spec.listener.onStateChanged(this, finalState);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package ai.fma.mpi_yarn;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * A job for MpiYarnClient, built like the mpi-run command line it stands
+ * for:
+ *
+ *   new JobSpec().executable("/path/to/solver").args("-i input").numProcs(64)
+ *       .hdfsPrefix("hdfs://nn/tmp").hydraPrefix("/opt/hydra").jar("mpi-yarn.jar")
+ *       .option("-placement", "rack").outputTo(System.out)
+ *
+ * Any option of the command line can be given through option() and flag().
+ */
+public class JobSpec {
+	ArrayList<String> args = new ArrayList<String>();
+	OutputStream output = null;
+	JobHandle.Listener listener = null;
+
+	public JobSpec option(String name, String value) {
+		args.add(name);
+		args.add(value);
+		return this;
+	}
+
+	public JobSpec flag(String name) {
+		args.add(name);
+		return this;
+	}
+
+	public JobSpec executable(String path) {
+		return option("-a", path);
+	}
+
+	public JobSpec args(String executableArgs) {
+		return option("-args", executableArgs);
+	}
+
+	public JobSpec numProcs(int numProcs) {
+		return option("-n", String.valueOf(numProcs));
+	}
+
+	public JobSpec numNodes(int numNodes, int procsPerNode) {
+		return option("-N", String.valueOf(numNodes)).option("-ppn", String.valueOf(procsPerNode));
+	}
+
+	public JobSpec hdfsPrefix(String prefix) {
+		return option("-p", prefix);
+	}
+
+	public JobSpec hydraPrefix(String prefix) {
+		return option("-hydra", prefix);
+	}
+
+	public JobSpec jar(String path) {
+		return option("-jar", path);
+	}
+
+	public JobSpec memoryMb(int memoryMb) {
+		return option("-m", String.valueOf(memoryMb));
+	}
+
+	public JobSpec queue(String queueName) {
+		return option("-q", queueName);
+	}
+
+	// HDFS path of the output file
+	public JobSpec outputPath(String path) {
+		return option("-o", path);
+	}
+
+	// the job output is copied here as it grows, on the poller thread
+	public JobSpec outputTo(OutputStream out) {
+		this.output = out;
+		return this;
+	}
+
+	public JobSpec listener(JobHandle.Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	public String[] toArgs() {
+		return args.toArray(new String[0]);
+	}
+}
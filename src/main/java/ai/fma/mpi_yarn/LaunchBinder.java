@@ -0,0 +1,219 @@
+package ai.fma.mpi_yarn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * AM side of pipelined launch. Containers are started with a ProxyAgent as
+ * soon as they are allocated, so localization overlaps with allocation; each
+ * agent connects here and waits until the AM binds a hydra proxy command to
+ * its container once the host list is final.
+ *
+ * Protocol: the agent sends "<token> <containerId>", the AM answers with a
+ * Message, zero or more files followed by the command to exec:
+ *
+ *   FILE <path> <length>\n<length bytes>
+ *   RUN <command>\n
+ *
+ * A session agent connects again after every command and runs until the
+ * binder is closed; other agents exec a single command. Files are streamed
+ * to every agent in chunks, on a thread of their own, so neither the AM
+ * heap nor the other binds wait for a large executable.
+ */
+public class LaunchBinder implements Runnable {
+	public static String EnvAddress = "MPI_YARN_BINDER";
+	public static String EnvToken = "MPI_YARN_BINDER_TOKEN";
+	public static String EnvSession = "MPI_YARN_SESSION";
+	// an agent that does not say hello within this time is dropped
+	public static int HELLO_TIMEOUT_MS = 10000;
+	// shipped files are copied through a buffer of this size
+	public static int CHUNK_BYTES = 64 * 1024;
+
+	ServerSocket server;
+	String token = UUID.randomUUID().toString();
+	Thread acceptor;
+
+	/** a shipped file, opened once for every agent it goes to */
+	public interface Content {
+		long length();
+
+		InputStream open() throws IOException;
+	}
+
+	public static class Message {
+		ArrayList<String> paths = new ArrayList<String>();
+		ArrayList<Content> contents = new ArrayList<Content>();
+		String command;
+
+		/** write the file below the container working directory before running */
+		public Message file(String path, Content content) {
+			paths.add(path);
+			contents.add(content);
+			return this;
+		}
+
+		public Message run(String command) {
+			this.command = command;
+			return this;
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			byte[] buffer = new byte[CHUNK_BYTES];
+			for (int i = 0; i < paths.size(); i++) {
+				Content content = contents.get(i);
+				long remaining = content.length();
+				out.write(("FILE " + paths.get(i) + " " + remaining + "\n").getBytes(StandardCharsets.UTF_8));
+				InputStream in = content.open();
+				try {
+					while (remaining > 0) {
+						int bytes = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+						if (bytes == -1) {
+							throw new IOException(paths.get(i) + " ended " + remaining + " bytes early");
+						}
+						out.write(buffer, 0, bytes);
+						remaining -= bytes;
+					}
+				} finally {
+					in.close();
+				}
+			}
+			out.write(("RUN " + command + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	// state below is guarded by this, a bound message is consumed when sent
+	HashMap<String, Message> commands = new HashMap<String, Message>();
+	HashMap<String, Socket> waiting = new HashMap<String, Socket>();
+	// first connection of every agent: its container is localized and running
+	HashMap<String, Long> firstHelloMs = new HashMap<String, Long>();
+
+	public void start() throws IOException {
+		server = new ServerSocket(0);
+		acceptor = new Thread(this, "launch-binder");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	private static void send(Socket socket, Message message) {
+		try {
+			OutputStream out = socket.getOutputStream();
+			message.writeTo(out);
+			out.flush();
+		} catch (IOException e) {
+			System.out.println("failed to bind command: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/** hand the command to the agent of the container, now or when it connects */
+	public void bind(String containerId, String command) {
+		bind(containerId, new Message().run(command));
+	}
+
+	public void bind(String containerId, final Message message) {
+		final Socket socket;
+		synchronized (this) {
+			socket = waiting.remove(containerId);
+			if (socket == null) {
+				commands.put(containerId, message);
+			}
+		}
+		if (socket != null) {
+			Thread sender = new Thread("binder-send") {
+				public void run() {
+					send(socket, message);
+				}
+			};
+			sender.setDaemon(true);
+			sender.start();
+		}
+	}
+
+	// the hello is read on a worker, a slow or stray connection delays no other agent
+	public void run() {
+		while (!server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread worker = new Thread("binder-hello") {
+				public void run() {
+					hello(socket);
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	private void hello(Socket socket) {
+		try {
+			socket.setSoTimeout(HELLO_TIMEOUT_MS);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			String hello = in.readLine();
+			String[] sp = hello == null ? new String[0] : hello.split(" ");
+			if (sp.length != 2 || !sp[0].equals(token)) {
+				socket.close();
+				return;
+			}
+			socket.setSoTimeout(0);
+			Message message;
+			synchronized (this) {
+				if (!firstHelloMs.containsKey(sp[1])) {
+					firstHelloMs.put(sp[1], System.currentTimeMillis());
+				}
+				message = commands.remove(sp[1]);
+				if (message == null) {
+					waiting.put(sp[1], socket);
+				}
+			}
+			if (message != null) {
+				send(socket, message);
+			}
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException e1) {
+			}
+		}
+	}
+
+	public synchronized Map<String, Long> getFirstHellos() {
+		return new HashMap<String, Long>(firstHelloMs);
+	}
+
+	/** stop accepting; agents still waiting see end of stream and exit */
+	public void close() throws IOException {
+		server.close();
+		synchronized (this) {
+			for (Socket socket : waiting.values()) {
+				socket.close();
+			}
+			waiting.clear();
+		}
+	}
+}
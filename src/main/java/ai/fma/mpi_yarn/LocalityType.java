@@ -1,7 +1,11 @@
 package ai.fma.mpi_yarn;
 /*
  * Locality type can be controlled via 
+ *   -n            NONE: n single-vcore containers anywhere
+ *   -N -ppn       GROUP: N hosts holding ppn single-vcore containers each
+ *   -N -ppn -packed  PACKED: N hosts holding one ppn-vcore container each,
+ *                 running a single hydra proxy that forks ppn ranks
  */
 public enum LocalityType {
-	NONE, GROUP
+	NONE, GROUP, PACKED
 }
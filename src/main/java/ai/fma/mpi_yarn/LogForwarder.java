@@ -0,0 +1,138 @@
+package ai.fma.mpi_yarn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Container side of live logs: copies one output stream of the hydra proxy
+ * to the container log and, through a bounded buffer, to the LogRelay of
+ * the AM. When the relay falls behind, output beyond the buffer is dropped
+ * and a marker tells how much, so the proxy never blocks on its output.
+ */
+public class LogForwarder {
+	public static int MAX_BUFFERED_BYTES = 1024 * 1024;
+	// how long the end of the output may take to reach the relay
+	public static int DRAIN_TIMEOUT_MS = 5000;
+
+	InputStream in;
+	PrintStream local;
+	String stream;
+	Thread reader;
+	Thread sender;
+
+	// state below is guarded by this
+	ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+	long dropped = 0;
+	boolean eof = false;
+	boolean disconnected = false;
+
+	public LogForwarder(String stream, InputStream in, PrintStream local) {
+		this.stream = stream;
+		this.in = in;
+		this.local = local;
+	}
+
+	public void start() {
+		reader = new Thread("forward-" + stream) {
+			public void run() {
+				readLoop();
+			}
+		};
+		sender = new Thread("relay-" + stream) {
+			public void run() {
+				try {
+					sendLoop();
+				} catch (IOException e) {
+					System.err.println("live log of " + stream + " lost: " + e.getMessage());
+				}
+				synchronized (LogForwarder.this) {
+					disconnected = true;
+					buffered.reset();
+				}
+			}
+		};
+		reader.start();
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	private void readLoop() {
+		byte[] buffer = new byte[StreamPump.BUFFER_BYTES];
+		try {
+			int bytes;
+			while ((bytes = in.read(buffer, 0, buffer.length)) != -1) {
+				local.write(buffer, 0, bytes);
+				synchronized (this) {
+					if (disconnected) {
+						continue;
+					}
+					if (buffered.size() + bytes > MAX_BUFFERED_BYTES) {
+						dropped += bytes;
+					} else {
+						buffered.write(buffer, 0, bytes);
+					}
+					notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("reading " + stream + ": " + e.getMessage());
+		}
+		local.flush();
+		synchronized (this) {
+			eof = true;
+			notifyAll();
+		}
+	}
+
+	private void sendLoop() throws IOException {
+		String[] address = System.getenv(LogRelay.EnvAddress).split(":");
+		Socket socket = new Socket(address[0], Integer.valueOf(address[1]));
+		try {
+			OutputStream out = socket.getOutputStream();
+			String host = System.getenv("NM_HOST");
+			out.write((System.getenv(LogRelay.EnvToken) + " " + System.getenv("CONTAINER_ID") + " " + host + " "
+					+ stream + "\n").getBytes(StandardCharsets.UTF_8));
+			while (true) {
+				byte[] batch;
+				long lost;
+				boolean last;
+				synchronized (this) {
+					while (buffered.size() == 0 && !eof) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+					}
+					batch = buffered.toByteArray();
+					buffered.reset();
+					lost = dropped;
+					dropped = 0;
+					last = eof;
+				}
+				out.write(batch);
+				if (lost > 0) {
+					out.write(("\n[" + lost + " bytes dropped, the relay fell behind]\n")
+							.getBytes(StandardCharsets.UTF_8));
+				}
+				out.flush();
+				if (last) {
+					return;
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/** wait until the stream ended and, for a bounded time, reached the relay */
+	public void awaitDone() throws InterruptedException {
+		reader.join();
+		sender.join(DRAIN_TIMEOUT_MS);
+	}
+}
@@ -0,0 +1,149 @@
+package ai.fma.mpi_yarn;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * AM side of live container logs. The agent of every rank container
+ * connects once per output stream of its hydra proxy and sends
+ * "<token> <containerId> <host> <stream>\n" followed by the raw output; each
+ * line goes to the live log as "[<containerId>@<host> <stream>] <line>",
+ * which the client follows next to the output file.
+ *
+ * Every connection has its own reader thread, so a noisy stream only delays
+ * itself; the agent bounds what it buffers for the relay (LogForwarder) and
+ * drops output rather than block the proxy.
+ */
+public class LogRelay implements Runnable {
+	public static String EnvAddress = "MPI_YARN_LOG_RELAY";
+	public static String EnvToken = "MPI_YARN_LOG_RELAY_TOKEN";
+	public static String SUFFIX = ".live";
+	// longer lines are cut into pieces of this size
+	public static int MAX_LINE_BYTES = 64 * 1024;
+
+	ServerSocket server;
+	String token = UUID.randomUUID().toString();
+	OutputSink sink;
+	Thread acceptor;
+
+	// state below is guarded by this
+	HashSet<Socket> open = new HashSet<Socket>();
+	HashSet<Thread> readers = new HashSet<Thread>();
+
+	public static Path livePath(String outputPath) {
+		return new Path(outputPath + SUFFIX);
+	}
+
+	public LogRelay(OutputSink sink) {
+		this.sink = sink;
+	}
+
+	public void start() throws IOException {
+		server = new ServerSocket(0);
+		acceptor = new Thread(this, "log-relay");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public void run() {
+		while (!server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread reader = new Thread("log-relay-reader") {
+				public void run() {
+					try {
+						relay(socket);
+					} catch (IOException e) {
+						System.out.println("log relay: " + e.getMessage());
+					} finally {
+						synchronized (LogRelay.this) {
+							open.remove(socket);
+							readers.remove(this);
+						}
+						try {
+							socket.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			};
+			reader.setDaemon(true);
+			synchronized (this) {
+				open.add(socket);
+				readers.add(reader);
+			}
+			reader.start();
+		}
+	}
+
+	private void relay(Socket socket) throws IOException {
+		socket.setSoTimeout(LaunchBinder.HELLO_TIMEOUT_MS);
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		String hello = StreamPump.readLine(in);
+		String[] sp = hello == null ? new String[0] : hello.split(" ");
+		if (sp.length != 4 || !sp[0].equals(token)) {
+			return;
+		}
+		socket.setSoTimeout(0);
+		byte[] tag = ("[" + sp[1] + "@" + sp[2] + " " + sp[3] + "] ").getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		line.write(tag, 0, tag.length);
+		int b;
+		while ((b = in.read()) != -1) {
+			line.write(b);
+			if (b == '\n' || line.size() >= MAX_LINE_BYTES) {
+				if (b != '\n') {
+					line.write('\n');
+				}
+				sink.write(line.toByteArray(), 0, line.size());
+				line.reset();
+				line.write(tag, 0, tag.length);
+			}
+		}
+		if (line.size() > tag.length) {
+			line.write('\n');
+			sink.write(line.toByteArray(), 0, line.size());
+		}
+	}
+
+	/** stop accepting, cut the remaining streams and close the live log */
+	public void close() throws IOException {
+		server.close();
+		HashSet<Thread> remaining;
+		synchronized (this) {
+			for (Socket socket : open) {
+				socket.close();
+			}
+			remaining = new HashSet<Thread>(readers);
+		}
+		for (Thread reader : remaining) {
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+		sink.close();
+	}
+}
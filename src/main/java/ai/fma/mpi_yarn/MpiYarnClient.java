@@ -0,0 +1,219 @@
+package ai.fma.mpi_yarn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.ApplicationReport;
+import org.apache.hadoop.yarn.client.api.YarnClient;
+import org.apache.hadoop.yarn.exceptions.ApplicationNotFoundException;
+
+/**
+ * Embeddable submission API. Many jobs from one JVM share one FileSystem,
+ * one YarnClient and one status poller:
+ *
+ *   MpiYarnClient client = new MpiYarnClient(conf);
+ *   JobHandle job = client.submit(new JobSpec()...);
+ *   FinalApplicationStatus status = job.get();
+ *   client.close();
+ *
+ * submit() returns at once; the artifacts are staged and the AM submitted
+ * on a small pool of submit threads. A single poller thread fetches the
+ * report of every job in flight each round, copies new output of every job
+ * to its output stream and dispatches the state changes; a job the RM no
+ * longer knows fails. close() fails the handles of all jobs not yet done;
+ * those already submitted keep running in YARN. Sessions and -attach stay
+ * with the mpi-run command line.
+ */
+public class MpiYarnClient implements Closeable {
+	public static int POLL_MS = 1000;
+	public static int SUBMIT_THREADS = 4;
+	public static int OUTPUT_BUFFER_BYTES = 1024 * 1024;
+
+	Configuration conf;
+	FileSystem dfs;
+	YarnClient yarnClient;
+	ExecutorService submitter;
+	Thread poller;
+
+	// state below is guarded by this
+	LinkedHashSet<JobHandle> queued = new LinkedHashSet<JobHandle>();
+	LinkedHashMap<ApplicationId, JobHandle> inFlight = new LinkedHashMap<ApplicationId, JobHandle>();
+	boolean closed = false;
+
+	public MpiYarnClient(Configuration conf) throws IOException {
+		this.conf = conf;
+		dfs = FileSystem.get(conf);
+		yarnClient = YarnClient.createYarnClient();
+		yarnClient.init(conf);
+		yarnClient.start();
+		submitter = Executors.newFixedThreadPool(SUBMIT_THREADS);
+		poller = new Thread("mpi-yarn-poller") {
+			public void run() {
+				pollLoop();
+			}
+		};
+		poller.setDaemon(true);
+		poller.start();
+	}
+
+	public JobHandle submit(final JobSpec spec) {
+		final JobHandle job = new JobHandle(this, spec);
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("client closed");
+			}
+			queued.add(job);
+		}
+		submitter.execute(new Runnable() {
+			public void run() {
+				try {
+					long startMs = System.currentTimeMillis();
+					Client client = new Client(conf, dfs);
+					if (spec.output != null) {
+						// progress of staging and submission goes with the job output
+						client.out = new PrintStream(spec.output, true, "UTF-8");
+					}
+					client.parse(spec.toArgs());
+					if (client.myConf.isSession() || client.myConf.getAttachAppId() != null) {
+						throw new IllegalArgumentException("sessions are not supported by MpiYarnClient");
+					}
+					if (job.isCancelled()) {
+						job.finish();
+						return;
+					}
+					ApplicationId appId = client.submit(yarnClient, startMs);
+					if (!job.submitted(appId, new Path(client.myConf.getOutputPath()))) {
+						kill(appId);
+					}
+					synchronized (MpiYarnClient.this) {
+						queued.remove(job);
+						inFlight.put(appId, job);
+						MpiYarnClient.this.notifyAll();
+					}
+				} catch (Exception e) {
+					job.failed(e);
+				} finally {
+					synchronized (MpiYarnClient.this) {
+						queued.remove(job);
+					}
+				}
+			}
+		});
+		return job;
+	}
+
+	void kill(ApplicationId appId) {
+		try {
+			yarnClient.killApplication(appId);
+		} catch (Exception e) {
+			System.out.println("failed to kill " + appId + ": " + e.getMessage());
+		}
+	}
+
+	private void pollLoop() {
+		byte[] buffer = new byte[OUTPUT_BUFFER_BYTES];
+		try {
+			while (true) {
+				synchronized (this) {
+					while (inFlight.isEmpty() && !closed) {
+						wait();
+					}
+					if (closed) {
+						return;
+					}
+				}
+				try {
+					poll(buffer);
+				} catch (Exception e) {
+					System.out.println("mpi-yarn poller: " + e.getMessage());
+				}
+				Thread.sleep(POLL_MS);
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private void poll(byte[] buffer) throws Exception {
+		ArrayList<Map.Entry<ApplicationId, JobHandle>> jobs;
+		synchronized (this) {
+			jobs = new ArrayList<Map.Entry<ApplicationId, JobHandle>>(inFlight.entrySet());
+		}
+		for (Map.Entry<ApplicationId, JobHandle> entry : jobs) {
+			JobHandle job = entry.getValue();
+			ApplicationReport report;
+			try {
+				report = yarnClient.getApplicationReport(entry.getKey());
+			} catch (ApplicationNotFoundException e) {
+				// gone from the RM, e.g. after a restart; it will never finish
+				synchronized (this) {
+					inFlight.remove(entry.getKey());
+				}
+				job.failed(e);
+				continue;
+			}
+			boolean last = job.update(report);
+			// the AM closes the output before it unregisters, so after the
+			// final state the output is complete
+			copyOutput(job, buffer, last);
+			if (last) {
+				synchronized (this) {
+					inFlight.remove(entry.getKey());
+				}
+				job.finish();
+			}
+		}
+	}
+
+	private void copyOutput(JobHandle job, byte[] buffer, boolean all) {
+		if (job.spec.output == null) {
+			return;
+		}
+		try {
+			long offset;
+			do {
+				offset = job.outputOffset;
+				job.outputOffset = Client.tail(dfs, job.getOutputPath(), offset, buffer, job.spec.output);
+			} while (all && job.outputOffset != offset);
+		} catch (IOException e) {
+			System.out.println("output of " + job.getApplicationId() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stop submitting and polling and fail the handles of all jobs that are
+	 * not done; jobs already submitted keep running in YARN.
+	 */
+	public void close() throws IOException {
+		ArrayList<JobHandle> outstanding;
+		synchronized (this) {
+			closed = true;
+			outstanding = new ArrayList<JobHandle>(queued);
+			outstanding.addAll(inFlight.values());
+			queued.clear();
+			inFlight.clear();
+			notifyAll();
+		}
+		submitter.shutdownNow();
+		poller.interrupt();
+		try {
+			poller.join();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		for (JobHandle job : outstanding) {
+			job.failed(new IOException("client closed"));
+		}
+		yarnClient.stop();
+	}
+}
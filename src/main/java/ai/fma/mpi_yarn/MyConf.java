@@ -6,12 +6,18 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.Serializable;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -20,8 +26,9 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.lang.SerializationUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -30,9 +37,16 @@ import org.apache.hadoop.yarn.api.records.LocalResourceType;
 import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
 import org.apache.hadoop.yarn.util.ConverterUtils;
 
-public class MyConf implements Serializable {
+public class MyConf {
 	public static String MPIEXEC = "mpiexec.hydra";
 	public static String PMI_PROXY = "hydra_pmi_proxy";
+	public static String AM_JAR = "mpi_yarn_am.jar";
+	// default AM memory: a base plus a share per rank for its bookkeeping and output relay, capped
+	public static int AM_BASE_MEMORY_MB = 256;
+	public static int AM_MEMORY_MB_PER_RANK = 1;
+	public static int AM_MAX_MEMORY_MB = 2048;
+	// default AM heap as a fraction of its container, the rest is JVM overhead
+	public static double AM_HEAP_FRACTION = 0.75;
 
 	public String getHydraPrefix() {
 		return hydraPrefix;
@@ -46,24 +60,239 @@ public class MyConf implements Serializable {
 		return hydraPrefix + "/" + PMI_PROXY;
 	}
 
-	public static String serialize(MyConf conf) {
-		byte[] data = SerializationUtils.serialize(conf);
-		return Base64.encodeBase64String(data);
+	// JobDescriptor tags, never reuse or renumber a tag
+	static final int TAG_NOW = 1;
+	static final int TAG_HDFS_PREFIX = 2;
+	static final int TAG_HYDRA_PREFIX = 3;
+	static final int TAG_ENV_LIST = 4;
+	static final int TAG_EXECUTABLE_PATH = 5;
+	static final int TAG_EXECUTABLE_ARGS = 6;
+	static final int TAG_EXECUTABLE_NAME = 7;
+	static final int TAG_SHARED_OBJECTS = 8;
+	static final int TAG_OUTPUT_PATH = 9;
+	static final int TAG_LOCALITY_TYPE = 10;
+	static final int TAG_NUM_PROCS = 11;
+	static final int TAG_NUM_NODES = 12;
+	static final int TAG_NUM_PROCS_PER_NODE = 13;
+	static final int TAG_CONTAINING_JAR = 14;
+	static final int TAG_CONTAINER_MEMORY_MB = 15;
+	static final int TAG_QUEUE_NAME = 16;
+	static final int TAG_MAX_LAUNCHES_PER_NODE = 17;
+	static final int TAG_FLUSH_POLICY = 18;
+	static final int TAG_CACHE_MAX_BYTES = 19;
+	static final int TAG_UPLOAD_THREADS = 20;
+	static final int TAG_CONTAINER_RESOURCES = 21;
+	static final int TAG_CONTAINER_ARCHIVES = 22;
+	static final int TAG_BUNDLE_EXECUTABLE = 23;
+	static final int TAG_PIPELINED = 24;
+	static final int TAG_SESSION = 25;
+	static final int TAG_IDLE_TIMEOUT_SEC = 26;
+	static final int TAG_POOL_IDLE_SEC = 27;
+	static final int TAG_PLACEMENT = 28;
+	static final int TAG_RACKS = 29;
+	static final int TAG_RACK_WAIT_SEC = 30;
+	static final int TAG_CLIENT_START_MS = 31;
+	static final int TAG_STAGED_AT_MS = 32;
+	static final int TAG_SUBMITTED_AT_MS = 33;
+	static final int TAG_FAIL_FAST = 34;
+	static final int TAG_MIN_PROCS = 35;
+	static final int TAG_MIN_NODES = 36;
+	static final int TAG_ALLOC_DEADLINE_SEC = 37;
+	static final int TAG_RANK_VCORES = 38;
+	static final int TAG_RANK_OUTPUT = 39;
+	static final int TAG_ROLL_MB = 40;
+	static final int TAG_OUTPUT_CODEC = 41;
+	static final int TAG_LIVE_LOGS = 42;
+	static final int TAG_ARRAY_TASKS = 43;
+	static final int TAG_ARRAY_PARALLEL = 44;
+	static final int TAG_PMI = 45;
+
+	public static byte[] encode(MyConf conf) throws IOException {
+		JobDescriptor.Writer writer = new JobDescriptor.Writer();
+		writer.putLong(TAG_NOW, conf.now.getTime());
+		writer.putString(TAG_HDFS_PREFIX, conf.hdfsPrefix);
+		writer.putString(TAG_HYDRA_PREFIX, conf.hydraPrefix);
+		writer.putStringList(TAG_ENV_LIST, new ArrayList<String>(conf.envList));
+		writer.putString(TAG_EXECUTABLE_PATH, conf.executablePath);
+		writer.putString(TAG_EXECUTABLE_ARGS, conf.executableArgs);
+		writer.putString(TAG_EXECUTABLE_NAME, conf.executableName);
+		writer.putStringList(TAG_SHARED_OBJECTS, conf.sharedObjectPathList);
+		writer.putString(TAG_OUTPUT_PATH, conf.outputPath);
+		writer.putString(TAG_LOCALITY_TYPE, conf.localityType.name());
+		writer.putInt(TAG_NUM_PROCS, conf.numProcs);
+		writer.putInt(TAG_NUM_NODES, conf.numNodes);
+		writer.putInt(TAG_NUM_PROCS_PER_NODE, conf.numProcsPerNode);
+		writer.putString(TAG_CONTAINING_JAR, conf.containingJar);
+		writer.putInt(TAG_CONTAINER_MEMORY_MB, conf.containerMemoryMb);
+		writer.putString(TAG_QUEUE_NAME, conf.queueName);
+		writer.putInt(TAG_MAX_LAUNCHES_PER_NODE, conf.maxLaunchesPerNode);
+		writer.putString(TAG_FLUSH_POLICY, conf.flushPolicy);
+		writer.putLong(TAG_CACHE_MAX_BYTES, conf.cacheMaxBytes);
+		writer.putInt(TAG_UPLOAD_THREADS, conf.uploadThreads);
+		writer.putStringMap(TAG_CONTAINER_RESOURCES, conf.containerResources);
+		writer.putStringMap(TAG_CONTAINER_ARCHIVES, conf.containerArchives);
+		writer.putBoolean(TAG_BUNDLE_EXECUTABLE, conf.bundleExecutable);
+		writer.putBoolean(TAG_PIPELINED, conf.pipelined);
+		writer.putBoolean(TAG_SESSION, conf.session);
+		writer.putInt(TAG_IDLE_TIMEOUT_SEC, conf.idleTimeoutSec);
+		writer.putInt(TAG_POOL_IDLE_SEC, conf.poolIdleSec);
+		writer.putString(TAG_PLACEMENT, conf.placement.name());
+		writer.putStringList(TAG_RACKS, conf.racks);
+		writer.putInt(TAG_RACK_WAIT_SEC, conf.rackWaitSec);
+		writer.putLong(TAG_CLIENT_START_MS, conf.clientStartMs);
+		writer.putLong(TAG_STAGED_AT_MS, conf.stagedAtMs);
+		writer.putLong(TAG_SUBMITTED_AT_MS, conf.submittedAtMs);
+		writer.putBoolean(TAG_FAIL_FAST, conf.failFast);
+		writer.putInt(TAG_MIN_PROCS, conf.minProcs);
+		writer.putInt(TAG_MIN_NODES, conf.minNodes);
+		writer.putInt(TAG_ALLOC_DEADLINE_SEC, conf.allocDeadlineSec);
+		writer.putInt(TAG_RANK_VCORES, conf.rankVcores);
+		writer.putBoolean(TAG_RANK_OUTPUT, conf.rankOutput);
+		writer.putInt(TAG_ROLL_MB, conf.rollMb);
+		writer.putString(TAG_OUTPUT_CODEC, conf.outputCodec);
+		writer.putBoolean(TAG_LIVE_LOGS, conf.liveLogs);
+		writer.putStringList(TAG_ARRAY_TASKS, conf.arrayTasks);
+		writer.putInt(TAG_ARRAY_PARALLEL, conf.arrayParallel);
+		writer.putBoolean(TAG_PMI, conf.pmi);
+		return writer.toByteArray();
+	}
+
+	public static MyConf decode(byte[] data) throws IOException {
+		JobDescriptor.Reader reader = new JobDescriptor.Reader(data);
+		MyConf conf = new MyConf();
+		conf.now = new Date(reader.getLong(TAG_NOW, 0));
+		conf.hdfsPrefix = reader.getString(TAG_HDFS_PREFIX, null);
+		conf.hydraPrefix = reader.getString(TAG_HYDRA_PREFIX, null);
+		conf.envList = new HashSet<String>(reader.getStringList(TAG_ENV_LIST));
+		conf.executablePath = reader.getString(TAG_EXECUTABLE_PATH, null);
+		conf.executableArgs = reader.getString(TAG_EXECUTABLE_ARGS, "");
+		conf.executableName = reader.getString(TAG_EXECUTABLE_NAME, null);
+		conf.executableFile = new File(conf.executablePath);
+		conf.sharedObjectPathList = reader.getStringList(TAG_SHARED_OBJECTS);
+		conf.outputPath = reader.getString(TAG_OUTPUT_PATH, null);
+		conf.localityType = LocalityType.valueOf(reader.getString(TAG_LOCALITY_TYPE, LocalityType.NONE.name()));
+		conf.numProcs = reader.getInt(TAG_NUM_PROCS, -1);
+		conf.numNodes = reader.getInt(TAG_NUM_NODES, -1);
+		conf.numProcsPerNode = reader.getInt(TAG_NUM_PROCS_PER_NODE, 1);
+		conf.containingJar = reader.getString(TAG_CONTAINING_JAR, null);
+		conf.containerMemoryMb = reader.getInt(TAG_CONTAINER_MEMORY_MB, 256);
+		conf.queueName = reader.getString(TAG_QUEUE_NAME, "default");
+		conf.maxLaunchesPerNode = reader.getInt(TAG_MAX_LAUNCHES_PER_NODE, 8);
+		conf.flushPolicy = reader.getString(TAG_FLUSH_POLICY, "time:200");
+		conf.cacheMaxBytes = reader.getLong(TAG_CACHE_MAX_BYTES, 0);
+		conf.uploadThreads = reader.getInt(TAG_UPLOAD_THREADS, 4);
+		conf.containerResources = reader.getStringMap(TAG_CONTAINER_RESOURCES);
+		conf.containerArchives = reader.getStringMap(TAG_CONTAINER_ARCHIVES);
+		conf.bundleExecutable = reader.getBoolean(TAG_BUNDLE_EXECUTABLE, false);
+		conf.pipelined = reader.getBoolean(TAG_PIPELINED, false);
+		conf.session = reader.getBoolean(TAG_SESSION, false);
+		conf.idleTimeoutSec = reader.getInt(TAG_IDLE_TIMEOUT_SEC, 600);
+		conf.poolIdleSec = reader.getInt(TAG_POOL_IDLE_SEC, 0);
+		conf.placement = RankPlacement.Policy
+				.valueOf(reader.getString(TAG_PLACEMENT, RankPlacement.Policy.RACK.name()));
+		conf.racks = reader.getStringList(TAG_RACKS);
+		conf.rackWaitSec = reader.getInt(TAG_RACK_WAIT_SEC, 60);
+		conf.clientStartMs = reader.getLong(TAG_CLIENT_START_MS, 0);
+		conf.stagedAtMs = reader.getLong(TAG_STAGED_AT_MS, 0);
+		conf.submittedAtMs = reader.getLong(TAG_SUBMITTED_AT_MS, 0);
+		conf.failFast = reader.getBoolean(TAG_FAIL_FAST, true);
+		conf.minProcs = reader.getInt(TAG_MIN_PROCS, conf.numProcs);
+		conf.minNodes = reader.getInt(TAG_MIN_NODES, conf.numNodes);
+		conf.allocDeadlineSec = reader.getInt(TAG_ALLOC_DEADLINE_SEC, -1);
+		conf.rankVcores = reader.getInt(TAG_RANK_VCORES, 1);
+		conf.rankOutput = reader.getBoolean(TAG_RANK_OUTPUT, false);
+		conf.rollMb = reader.getInt(TAG_ROLL_MB, 64);
+		conf.outputCodec = reader.getString(TAG_OUTPUT_CODEC, null);
+		conf.liveLogs = reader.getBoolean(TAG_LIVE_LOGS, false);
+		conf.arrayTasks = reader.getStringList(TAG_ARRAY_TASKS);
+		conf.arrayParallel = reader.getInt(TAG_ARRAY_PARALLEL, 1);
+		conf.pmi = reader.getBoolean(TAG_PMI, false);
+		return conf;
 	}
 
-	public static MyConf deserialize(String base64String) {
-		byte[] data = Base64.decodeBase64(base64String);
-		return (MyConf) SerializationUtils.deserialize(data);
+	public static String serialize(MyConf conf) throws IOException {
+		return Base64.encodeBase64String(encode(conf));
+	}
+
+	public static MyConf deserialize(String base64String) throws IOException {
+		return decode(Base64.decodeBase64(base64String));
+	}
+
+	/**
+	 * Put the descriptor into the AM environment, inline when it is small and
+	 * as an HDFS side file otherwise; returns the side file or null.
+	 */
+	public static Path export(MyConf conf, FileSystem dfs, Path sideFile, Map<String, String> env)
+			throws IOException {
+		String encoded = serialize(conf);
+		if (encoded.length() <= INLINE_LIMIT) {
+			env.put(EnvName, encoded);
+			return null;
+		}
+		FSDataOutputStream out = dfs.create(sideFile, true);
+		try {
+			out.write(encode(conf));
+		} finally {
+			out.close();
+		}
+		env.put(EnvPathName, sideFile.toString());
+		return sideFile;
+	}
+
+	/** read the descriptor exported by the client from the AM environment */
+	public static MyConf load(FileSystem dfs) throws IOException {
+		String inline = System.getenv(EnvName);
+		if (inline != null) {
+			return deserialize(inline);
+		}
+		String sideFile = System.getenv(EnvPathName);
+		if (sideFile == null) {
+			throw new IOException("neither " + EnvName + " nor " + EnvPathName + " is set");
+		}
+		Path path = new Path(sideFile);
+		byte[] data = new byte[(int) dfs.getFileStatus(path).getLen()];
+		FSDataInputStream in = dfs.open(path);
+		try {
+			in.readFully(0, data);
+		} finally {
+			in.close();
+		}
+		return decode(data);
 	}
 
 	public String getQueueName() {
 		return queueName;
 	}
 
+	// memory of one rank; a packed container holds getRanksPerContainer() of them
 	public int getContainerMemoryMb() {
 		return containerMemoryMb;
 	}
 
+	public int getRankVcores() {
+		return rankVcores;
+	}
+
+	// AM container memory, by default derived from the rank count
+	public int getAmMemoryMb() {
+		if (amMemoryMb > 0) {
+			return amMemoryMb;
+		}
+		return Math.min(AM_MAX_MEMORY_MB, AM_BASE_MEMORY_MB + AM_MEMORY_MB_PER_RANK * getNumRanks());
+	}
+
+	public int getAmVcores() {
+		return amVcores;
+	}
+
+	// AM JVM heap, by default a fraction of the AM container
+	public int getAmHeapMb() {
+		if (amHeapMb > 0) {
+			return amHeapMb;
+		}
+		return (int) (getAmMemoryMb() * AM_HEAP_FRACTION);
+	}
+
 	public Date getNow() {
 		return now;
 	}
@@ -112,6 +341,21 @@ public class MyConf implements Serializable {
 		return numNodes;
 	}
 
+	// lower bound of an elastic -n min:max, equal to getNumProcs() for an exact -n
+	public int getMinProcs() {
+		return minProcs;
+	}
+
+	// lower bound of an elastic -N min:max, equal to getNumNodes() for an exact -N
+	public int getMinNodes() {
+		return minNodes;
+	}
+
+	// seconds after which the job starts with what it holds, if at least the minimum; -1 waits for the maximum
+	public int getAllocDeadlineSec() {
+		return allocDeadlineSec;
+	}
+
 	public int getNumProcsPerNode() {
 		return numProcsPerNode;
 	}
@@ -120,7 +364,197 @@ public class MyConf implements Serializable {
 		return containingJar;
 	}
 
+	public int getMaxLaunchesPerNode() {
+		return maxLaunchesPerNode;
+	}
+
+	public String getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	// split the output into rolling files per rank next to the output file
+	public boolean isRankOutput() {
+		return rankOutput;
+	}
+
+	// uncompressed size at which a rank output file rolls over
+	public long getRollBytes() {
+		return rollMb * 1024L * 1024L;
+	}
+
+	// Hadoop compression codec of the rank output files, null for none
+	public String getOutputCodec() {
+		return outputCodec;
+	}
+
+	// stream the output of every hydra proxy to the client while the job runs
+	public boolean isLiveLogs() {
+		return liveLogs;
+	}
+
+	// the AM serves PMI and the containers start the ranks, no mpiexec.hydra
+	public boolean isPmi() {
+		return pmi;
+	}
+
+	// executable arguments of every task of a job array, empty for a single run
+	public List<String> getArrayTasks() {
+		return arrayTasks;
+	}
+
+	public boolean isArray() {
+		return !arrayTasks.isEmpty();
+	}
+
+	// tasks of a job array that run at once, the pool is sized for them
+	public int getArrayParallel() {
+		return arrayParallel;
+	}
+
+	// containers to allocate in NONE mode
+	public int getAllocProcs() {
+		return isArray() ? numProcs * arrayParallel : numProcs;
+	}
+
+	// groups or packed containers to allocate in GROUP and PACKED mode
+	public int getAllocNodes() {
+		return isArray() ? numNodes * arrayParallel : numNodes;
+	}
+
+	public long getCacheMaxBytes() {
+		return cacheMaxBytes;
+	}
+
+	public int getUploadThreads() {
+		return uploadThreads;
+	}
+
+	// local resource name -> HDFS path of the artifacts localized into every rank container
+	public LinkedHashMap<String, String> getContainerResources() {
+		return containerResources;
+	}
+
+	public void putContainerResource(String name, String hdfsPath) {
+		containerResources.put(name, hdfsPath);
+	}
+
+	// local resource name -> HDFS path of the archives unpacked into every rank container
+	public LinkedHashMap<String, String> getContainerArchives() {
+		return containerArchives;
+	}
+
+	public void putContainerArchive(String name, String hdfsPath) {
+		containerArchives.put(name, hdfsPath);
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	// tear the job down on the first abnormal rank exit instead of waiting for all ranks
+	public boolean isFailFast() {
+		return failFast;
+	}
+
+	// client side phase boundaries in epoch ms, 0 when unknown
+	public long getClientStartMs() {
+		return clientStartMs;
+	}
+
+	public long getStagedAtMs() {
+		return stagedAtMs;
+	}
+
+	public long getSubmittedAtMs() {
+		return submittedAtMs;
+	}
+
+	public void setClientTimes(long clientStartMs, long stagedAtMs, long submittedAtMs) {
+		this.clientStartMs = clientStartMs;
+		this.stagedAtMs = stagedAtMs;
+		this.submittedAtMs = submittedAtMs;
+	}
+
+	// racks the job is confined to, empty for any rack
+	public List<String> getRacks() {
+		return racks;
+	}
+
+	public void setRacks(List<String> racks) {
+		this.racks = racks;
+	}
+
+	public boolean isRackFit() {
+		return rackFit;
+	}
+
+	// seconds to wait for the rack constraint before taking any rack, -1 waits forever
+	public int getRackWaitSec() {
+		return rackWaitSec;
+	}
+
+	// a packed container holds all ppn ranks of its node
+	public int getRanksPerContainer() {
+		return localityType == LocalityType.PACKED ? numProcsPerNode : 1;
+	}
+
+	public RankPlacement.Policy getPlacement() {
+		return placement;
+	}
+
+	public boolean isSession() {
+		return session;
+	}
+
+	// a session ends after this many seconds without a job
+	public int getIdleTimeoutSec() {
+		return idleTimeoutSec;
+	}
+
+	// session containers unused for this many seconds are released, 0 keeps them
+	public int getPoolIdleSec() {
+		return poolIdleSec;
+	}
+
+	// application id of the session to submit to, null starts a new application
+	public String getAttachAppId() {
+		return attachAppId;
+	}
+
+	// total ranks of the job, derived from -N/-ppn in GROUP and PACKED mode
+	public int getNumRanks() {
+		return localityType == LocalityType.NONE ? numProcs : numNodes * numProcsPerNode;
+	}
+
+	public boolean isBundleExecutable() {
+		return bundleExecutable;
+	}
+
+	// the executable as seen from the container working directory
+	public String getExecutableCommand() {
+		if (bundleExecutable) {
+			return "./" + SharedObjectBundle.NAME + "/" + executableName;
+		}
+		return "./" + executableName;
+	}
+
+	private MyConf() {
+	}
+
+	/** @throws IllegalArgumentException after printing the usage, if the arguments are invalid */
 	public MyConf(String[] args) {
+		this(args, System.out);
+	}
+
+	private static void printHelp(HelpFormatter formatter, Options options, PrintStream out) {
+		PrintWriter writer = new PrintWriter(out);
+		formatter.printHelp(writer, formatter.getWidth(), "mpi-run", null, options, formatter.getLeftPadding(),
+				formatter.getDescPadding(), null);
+		writer.flush();
+	}
+
+	/** print the reason and the usage of invalid arguments to out */
+	public MyConf(String[] args, PrintStream out) {
 		now = new Date();
 
 		Options options = new Options();
@@ -137,15 +571,15 @@ public class MyConf implements Serializable {
 		optionHdfsPrefix.setRequired(true);
 		options.addOption(optionHdfsPrefix);
 
-		Option optionHydraHome = new Option("hydra", "", true, "the prefix of hydra process manager");
-		optionHydraHome.setRequired(true);
+		Option optionHydraHome = new Option("hydra", "", true, "the prefix of hydra process manager, unless -pmi");
+		optionHydraHome.setRequired(false);
 		options.addOption(optionHydraHome);
 
-		Option optionNumProcs = new Option("n", "", true, "num processes");
+		Option optionNumProcs = new Option("n", "", true, "num processes, or min:max");
 		optionNumProcs.setRequired(false);
 		options.addOption(optionNumProcs);
 
-		Option optionNumNodes = new Option("N", "", true, "num nodes");
+		Option optionNumNodes = new Option("N", "", true, "num nodes, or min:max");
 		optionNumNodes.setRequired(false);
 		options.addOption(optionNumNodes);
 
@@ -178,25 +612,154 @@ public class MyConf implements Serializable {
 		optionQueueName.setRequired(false);
 		options.addOption(optionQueueName);
 
+		Option optionMaxLaunchesPerNode = new Option("launchpernode", true,
+				"max concurrent container launches per NodeManager");
+		optionMaxLaunchesPerNode.setRequired(false);
+		options.addOption(optionMaxLaunchesPerNode);
+
+		Option optionPacked = new Option("packed", false,
+				"with -N/-ppn, one ppn-vcore container and one hydra proxy per node");
+		optionPacked.setRequired(false);
+		options.addOption(optionPacked);
+
+		Option optionFlushPolicy = new Option("flush", true,
+				"output flush policy: time:MS, bytes:N or hflush (hsync on close)");
+		optionFlushPolicy.setRequired(false);
+		options.addOption(optionFlushPolicy);
+
+		Option optionCacheSize = new Option("cachesize", true,
+				"size cap of the HDFS artifact cache in MB, 0 disables eviction");
+		optionCacheSize.setRequired(false);
+		options.addOption(optionCacheSize);
+
+		Option optionUploadThreads = new Option("uploadthreads", true, "number of concurrent artifact uploads");
+		optionUploadThreads.setRequired(false);
+		options.addOption(optionUploadThreads);
+
+		Option optionBundleExecutable = new Option("bundleexe", false,
+				"pack the executable into the shared object archive");
+		optionBundleExecutable.setRequired(false);
+		options.addOption(optionBundleExecutable);
+
+		Option optionPipelined = new Option("pipelined", false,
+				"start rank containers as they are allocated and bind hydra proxies later");
+		optionPipelined.setRequired(false);
+		options.addOption(optionPipelined);
+
+		Option optionSession = new Option("session", false,
+				"keep the AM and its containers after the job, run jobs submitted with -attach on them");
+		optionSession.setRequired(false);
+		options.addOption(optionSession);
+
+		Option optionIdleTimeout = new Option("idletimeout", true, "seconds a session waits for the next job");
+		optionIdleTimeout.setRequired(false);
+		options.addOption(optionIdleTimeout);
+
+		Option optionPoolIdle = new Option("poolidle", true,
+				"seconds after which unused session containers are released, 0 keeps them");
+		optionPoolIdle.setRequired(false);
+		options.addOption(optionPoolIdle);
+
+		Option optionAttach = new Option("attach", true, "application id of the session to run the job in");
+		optionAttach.setRequired(false);
+		options.addOption(optionAttach);
+
+		Option optionPlacement = new Option("placement", true,
+				"rank order across hosts: packed, rack (default) or roundrobin");
+		optionPlacement.setRequired(false);
+		options.addOption(optionPlacement);
+
+		Option optionRacks = new Option("racks", true, "comma(,)-seperated list of racks to confine the job to");
+		optionRacks.setRequired(false);
+		options.addOption(optionRacks);
+
+		Option optionRackFit = new Option("rackfit", false, "confine the job to the fewest racks that can hold it");
+		optionRackFit.setRequired(false);
+		options.addOption(optionRackFit);
+
+		Option optionRackWait = new Option("rackwait", true,
+				"seconds to wait for the rack constraint before taking any rack, -1 waits forever");
+		optionRackWait.setRequired(false);
+		options.addOption(optionRackWait);
+
+		Option optionFailPolicy = new Option("failpolicy", true,
+				"on an abnormal rank exit: fast (default) tears the job down, wait waits for all ranks (not with -pmi)");
+		optionFailPolicy.setRequired(false);
+		options.addOption(optionFailPolicy);
+
+		Option optionAllocDeadline = new Option("allocdeadline", true,
+				"seconds after which an elastic job starts with the containers it holds, -1 waits for the maximum");
+		optionAllocDeadline.setRequired(false);
+		options.addOption(optionAllocDeadline);
+
+		Option optionRankVcores = new Option("vcores", true, "vcores per rank");
+		optionRankVcores.setRequired(false);
+		options.addOption(optionRankVcores);
+
+		Option optionAmMemory = new Option("amm", true,
+				"AM container memory in MB, derived from the rank count by default");
+		optionAmMemory.setRequired(false);
+		options.addOption(optionAmMemory);
+
+		Option optionAmVcores = new Option("amvcores", true, "AM container vcores");
+		optionAmVcores.setRequired(false);
+		options.addOption(optionAmVcores);
+
+		Option optionAmHeap = new Option("amxmx", true, "AM JVM heap in MB, a fraction of the AM memory by default");
+		optionAmHeap.setRequired(false);
+		options.addOption(optionAmHeap);
+
+		Option optionRankOutput = new Option("rankoutput", false,
+				"split the output into per-rank files under <output>.ranks, with an index");
+		optionRankOutput.setRequired(false);
+		options.addOption(optionRankOutput);
+
+		Option optionRollMb = new Option("rollmb", true, "size in MB at which a per-rank output file rolls over");
+		optionRollMb.setRequired(false);
+		options.addOption(optionRollMb);
+
+		Option optionOutputCodec = new Option("outputcodec", true,
+				"Hadoop compression codec of the per-rank output files, e.g. gzip");
+		optionOutputCodec.setRequired(false);
+		options.addOption(optionOutputCodec);
+
+		Option optionLiveLogs = new Option("livelogs", false,
+				"stream the stdout/stderr of every rank container to the client while the job runs");
+		optionLiveLogs.setRequired(false);
+		options.addOption(optionLiveLogs);
+
+		Option optionArray = new Option("array", true,
+				"job array: a range FIRST-LAST[:STEP] substituted for {} in -args, or a file of one -args per line");
+		optionArray.setRequired(false);
+		options.addOption(optionArray);
+
+		Option optionArrayParallel = new Option("arraypar", true, "tasks of a job array that run at once");
+		optionArrayParallel.setRequired(false);
+		options.addOption(optionArrayParallel);
+
+		Option optionPmi = new Option("pmi", false,
+				"serve PMI-1 from the AM and start the ranks directly, without mpiexec.hydra");
+		optionPmi.setRequired(false);
+		options.addOption(optionPmi);
+
 		CommandLineParser parser = new org.apache.commons.cli.PosixParser();
 		HelpFormatter formatter = new HelpFormatter();
 		CommandLine cmd;
 		try {
 			cmd = parser.parse(options, args);
 		} catch (ParseException e) {
-			System.out.println(e.getMessage());
-			formatter.printHelp("mpi-run", options);
-			System.exit(1);
-			return;
+			out.println(e.getMessage());
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
 		}
 
 		// process
 		executablePath = cmd.getOptionValue("a");
 		executableFile = new File(executablePath);
 		if (!executableFile.exists()) {
-			System.out.println("Executable " + executablePath + " does not exist.");
-			formatter.printHelp("mpi-run", options);
-			System.exit(1);
+			out.println("Executable " + executablePath + " does not exist.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
 		}
 		executableName = executableFile.getName();
 		if (cmd.getOptionValue("args") != null) {
@@ -206,35 +769,52 @@ public class MyConf implements Serializable {
 		}
 		hdfsPrefix = cmd.getOptionValue("p");
 		hydraPrefix = cmd.getOptionValue("hydra");
+		pmi = cmd.hasOption("pmi");
+		if (!pmi && hydraPrefix == null) {
+			out.println("-hydra is required unless -pmi is given.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
 
-		{
+		if (!pmi) {
 			File file = new File(getHydraMpiexec());
 			if (!file.exists()) {
-				System.out.println("Hydra mpiexec " + getHydraMpiexec() + " does not exist.");
-				formatter.printHelp("mpi-run", options);
-				System.exit(1);
+				out.println("Hydra mpiexec " + getHydraMpiexec() + " does not exist.");
+				printHelp(formatter, options, out);
+				throw new IllegalArgumentException("invalid mpi-run arguments");
 			}
 		}
 
-		{
+		if (!pmi) {
 			File file = new File(getHydraProxy());
 			if (!file.exists()) {
-				System.out.println("Hydra pmi_proxy " + getHydraMpiexec() + " does not exist.");
-				formatter.printHelp("mpi-run", options);
-				System.exit(1);
+				out.println("Hydra pmi_proxy " + getHydraMpiexec() + " does not exist.");
+				printHelp(formatter, options, out);
+				throw new IllegalArgumentException("invalid mpi-run arguments");
 			}
 		}
 
 		if (cmd.getOptionValue("n") != null) {
-			numProcs = Integer.valueOf(cmd.getOptionValue("n"));
+			String[] range = cmd.getOptionValue("n").split(":");
+			minProcs = Integer.valueOf(range[0]);
+			numProcs = Integer.valueOf(range[range.length - 1]);
 		} else {
+			minProcs = -1;
 			numProcs = -1;
 		}
 		if (cmd.getOptionValue("N") != null) {
-			numNodes = Integer.valueOf(cmd.getOptionValue("N"));
+			String[] range = cmd.getOptionValue("N").split(":");
+			minNodes = Integer.valueOf(range[0]);
+			numNodes = Integer.valueOf(range[range.length - 1]);
 		} else {
+			minNodes = -1;
 			numNodes = -1;
 		}
+		if (cmd.getOptionValue("allocdeadline") != null) {
+			allocDeadlineSec = Integer.valueOf(cmd.getOptionValue("allocdeadline"));
+		} else {
+			allocDeadlineSec = -1;
+		}
 		if (cmd.getOptionValue("o") != null) {
 			outputPath = cmd.getOptionValue("o");
 		} else {
@@ -264,9 +844,9 @@ public class MyConf implements Serializable {
 		containingJar = cmd.getOptionValue("jar");
 		File containingJarFile = new File(containingJar);
 		if (!containingJarFile.exists()) {
-			System.out.println("Jar " + containingJar + " does not exist.");
-			formatter.printHelp("mpi-run", options);
-			System.exit(1);
+			out.println("Jar " + containingJar + " does not exist.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
 		}
 
 		if (cmd.getOptionValue("m") != null) {
@@ -274,6 +854,26 @@ public class MyConf implements Serializable {
 		} else {
 			containerMemoryMb = 256;
 		}
+		if (cmd.getOptionValue("vcores") != null) {
+			rankVcores = Integer.valueOf(cmd.getOptionValue("vcores"));
+		} else {
+			rankVcores = 1;
+		}
+		if (cmd.getOptionValue("amm") != null) {
+			amMemoryMb = Integer.valueOf(cmd.getOptionValue("amm"));
+		} else {
+			amMemoryMb = 0;
+		}
+		if (cmd.getOptionValue("amvcores") != null) {
+			amVcores = Integer.valueOf(cmd.getOptionValue("amvcores"));
+		} else {
+			amVcores = 1;
+		}
+		if (cmd.getOptionValue("amxmx") != null) {
+			amHeapMb = Integer.valueOf(cmd.getOptionValue("amxmx"));
+		} else {
+			amHeapMb = 0;
+		}
 
 		if (cmd.getOptionValue("q") != null) {
 			queueName = cmd.getOptionValue("q");
@@ -281,14 +881,181 @@ public class MyConf implements Serializable {
 			queueName = "default";
 		}
 
+		if (cmd.getOptionValue("launchpernode") != null) {
+			maxLaunchesPerNode = Integer.valueOf(cmd.getOptionValue("launchpernode"));
+		} else {
+			maxLaunchesPerNode = 8;
+		}
+
+		if (cmd.getOptionValue("flush") != null) {
+			flushPolicy = cmd.getOptionValue("flush");
+		} else {
+			flushPolicy = "time:200";
+		}
+		if (!flushPolicy.matches("(time|bytes):\\d+|hflush")) {
+			out.println("Unknown flush policy " + flushPolicy + ".");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
+
+		if (cmd.getOptionValue("cachesize") != null) {
+			cacheMaxBytes = Long.valueOf(cmd.getOptionValue("cachesize")) * 1024 * 1024;
+		} else {
+			cacheMaxBytes = 10240L * 1024 * 1024;
+		}
+		containerResources = new LinkedHashMap<String, String>();
+		containerArchives = new LinkedHashMap<String, String>();
+		bundleExecutable = cmd.hasOption("bundleexe");
+		pipelined = cmd.hasOption("pipelined");
+		rankOutput = cmd.hasOption("rankoutput");
+		if (cmd.getOptionValue("rollmb") != null) {
+			rollMb = Integer.valueOf(cmd.getOptionValue("rollmb"));
+		} else {
+			rollMb = 64;
+		}
+		outputCodec = cmd.getOptionValue("outputcodec");
+		liveLogs = cmd.hasOption("livelogs");
+		arrayTasks = new ArrayList<String>();
+		if (cmd.getOptionValue("array") != null) {
+			String spec = cmd.getOptionValue("array");
+			Matcher range = Pattern.compile("(\\d+)-(\\d+)(:(\\d+))?").matcher(spec);
+			if (range.matches()) {
+				int first = Integer.valueOf(range.group(1));
+				int last = Integer.valueOf(range.group(2));
+				int step = range.group(4) != null ? Integer.valueOf(range.group(4)) : 1;
+				if (step < 1 || first > last) {
+					out.println("Job array " + spec + " is empty, it needs FIRST <= LAST and STEP >= 1.");
+					printHelp(formatter, options, out);
+					throw new IllegalArgumentException("invalid mpi-run arguments");
+				}
+				// long, so that a LAST near the int limit does not wrap around
+				for (long i = first; i <= last; i += step) {
+					arrayTasks.add(executableArgs.replace("{}", String.valueOf(i)));
+				}
+			} else {
+				try {
+					Scanner scanner = new Scanner(new File(spec), "UTF-8");
+					while (scanner.hasNextLine()) {
+						String line = scanner.nextLine().trim();
+						if (!line.isEmpty()) {
+							arrayTasks.add(line);
+						}
+					}
+					scanner.close();
+				} catch (IOException e) {
+					out.println("Job array " + spec + " is neither a range nor a readable file.");
+					printHelp(formatter, options, out);
+					throw new IllegalArgumentException("invalid mpi-run arguments");
+				}
+			}
+		}
+		if (cmd.getOptionValue("arraypar") != null) {
+			arrayParallel = Integer.valueOf(cmd.getOptionValue("arraypar"));
+		} else {
+			arrayParallel = 1;
+		}
+		session = cmd.hasOption("session");
+		racks = new ArrayList<String>();
+		if (cmd.getOptionValue("racks") != null) {
+			for (String rack : cmd.getOptionValue("racks").split(",")) {
+				racks.add(rack);
+			}
+		}
+		rackFit = cmd.hasOption("rackfit");
+		if (cmd.getOptionValue("failpolicy") != null) {
+			if (!cmd.getOptionValue("failpolicy").matches("fast|wait")) {
+				out.println("Unknown fail policy " + cmd.getOptionValue("failpolicy") + ".");
+				printHelp(formatter, options, out);
+				throw new IllegalArgumentException("invalid mpi-run arguments");
+			}
+			failFast = cmd.getOptionValue("failpolicy").equals("fast");
+		} else {
+			failFast = true;
+		}
+		if (cmd.getOptionValue("rackwait") != null) {
+			rackWaitSec = Integer.valueOf(cmd.getOptionValue("rackwait"));
+		} else {
+			rackWaitSec = 60;
+		}
+		if (cmd.getOptionValue("placement") != null) {
+			try {
+				placement = RankPlacement.Policy.valueOf(cmd.getOptionValue("placement").toUpperCase());
+			} catch (IllegalArgumentException e) {
+				out.println("Unknown placement " + cmd.getOptionValue("placement") + ".");
+				printHelp(formatter, options, out);
+				throw new IllegalArgumentException("invalid mpi-run arguments");
+			}
+		} else {
+			placement = RankPlacement.Policy.RACK;
+		}
+		attachAppId = cmd.getOptionValue("attach");
+		if (cmd.getOptionValue("idletimeout") != null) {
+			idleTimeoutSec = Integer.valueOf(cmd.getOptionValue("idletimeout"));
+		} else {
+			idleTimeoutSec = 600;
+		}
+		if (cmd.getOptionValue("poolidle") != null) {
+			poolIdleSec = Integer.valueOf(cmd.getOptionValue("poolidle"));
+		} else {
+			poolIdleSec = 0;
+		}
+		if (cmd.getOptionValue("uploadthreads") != null) {
+			uploadThreads = Integer.valueOf(cmd.getOptionValue("uploadthreads"));
+		} else {
+			uploadThreads = 4;
+		}
+
 		// assert
+		if (minProcs > numProcs || minNodes > numNodes || minProcs == 0 || minNodes == 0) {
+			out.println("The minimum of -n or -N must be at least 1 and at most the maximum.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
+		if (session && (minProcs != numProcs || minNodes != numNodes)) {
+			out.println("-session takes an exact -n or -N.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
+		// every task of an array runs with the full rank count
+		if (!arrayTasks.isEmpty() && (minProcs != numProcs || minNodes != numNodes)) {
+			out.println("-array takes an exact -n or -N.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
+		if (arrayParallel < 1) {
+			out.println("-arraypar must be at least 1.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
+		if (rackFit && !racks.isEmpty()) {
+			out.println("-racks and -rackfit are exclusive.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
+		if (!arrayTasks.isEmpty() && (session || attachAppId != null)) {
+			out.println("-array runs its own AM, it cannot be combined with -session or -attach.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
+		if (pmi && (session || attachAppId != null || !arrayTasks.isEmpty() || liveLogs)) {
+			out.println("-pmi runs a single job and streams the rank output itself; it cannot be combined with "
+					+ "-session, -attach, -array or -livelogs.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
+		if (session && attachAppId != null) {
+			out.println("-session starts a session, -attach submits to a running one; use only one.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
+		}
 		if (numProcs == -1 && numNodes == -1 || numProcs != -1 && numNodes != -1) {
-			System.out.println("Exactly one of -n, -N must be set.");
-			formatter.printHelp("mpi-run", options);
-			System.exit(1);
-			return;
+			out.println("Exactly one of -n, -N must be set.");
+			printHelp(formatter, options, out);
+			throw new IllegalArgumentException("invalid mpi-run arguments");
 		} else if (numProcs != -1) {
 			localityType = LocalityType.NONE;
+		} else if (cmd.hasOption("packed")) {
+			localityType = LocalityType.PACKED;
 		} else {
 			localityType = LocalityType.GROUP;
 		}
@@ -307,19 +1074,61 @@ public class MyConf implements Serializable {
 	private LocalityType localityType;
 	private int numProcs;
 	private int numNodes;
+	private int minProcs;
+	private int minNodes;
+	private int allocDeadlineSec;
 	private int numProcsPerNode;
 	private String containingJar;
 	private int containerMemoryMb;
+	private int rankVcores;
+	private int amMemoryMb;
+	private int amVcores;
+	private int amHeapMb;
 	private String queueName;
+	private int maxLaunchesPerNode;
+	private String flushPolicy;
+	private long cacheMaxBytes;
+	private int uploadThreads;
+	private LinkedHashMap<String, String> containerResources;
+	private LinkedHashMap<String, String> containerArchives;
+	private boolean bundleExecutable;
+	private boolean pipelined;
+	private boolean rankOutput;
+	private int rollMb;
+	private String outputCodec;
+	private boolean liveLogs;
+	private List<String> arrayTasks;
+	private int arrayParallel;
+	private boolean pmi;
+	private boolean session;
+	private RankPlacement.Policy placement;
+	private List<String> racks;
+	private boolean rackFit;
+	private int rackWaitSec;
+	private long clientStartMs;
+	private long stagedAtMs;
+	private long submittedAtMs;
+	private boolean failFast;
+	private int idleTimeoutSec;
+	private int poolIdleSec;
+	private String attachAppId;
 
 	public static String EnvName = "MPI_YARN_MY_CONF";
+	public static String EnvPathName = "MPI_YARN_MY_CONF_PATH";
+	// larger descriptors go to an HDFS side file instead of the environment
+	public static int INLINE_LIMIT = 16 * 1024;
 
 	public static void setupLocalResource(FileSystem dfs, Path path, LocalResource localResource) throws IOException {
+		setupLocalResource(dfs, path, localResource, LocalResourceType.FILE);
+	}
+
+	public static void setupLocalResource(FileSystem dfs, Path path, LocalResource localResource,
+			LocalResourceType type) throws IOException {
 		FileStatus fileStat = dfs.getFileStatus(path);
 		localResource.setResource(ConverterUtils.getYarnUrlFromPath(path));
 		localResource.setSize(fileStat.getLen());
 		localResource.setTimestamp(fileStat.getModificationTime());
-		localResource.setType(LocalResourceType.FILE);
+		localResource.setType(type);
 		localResource.setVisibility(LocalResourceVisibility.PUBLIC);
 	}
 
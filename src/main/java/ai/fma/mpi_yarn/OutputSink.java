@@ -0,0 +1,161 @@
+package ai.fma.mpi_yarn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+/**
+ * Buffered writer of the job output file. Producers append into an in-memory
+ * batch; a background thread writes whole batches (group commit) and syncs
+ * them according to the flush policy:
+ *
+ *   time:MS     hsync at most once every MS milliseconds
+ *   bytes:N     hflush every batch, hsync once N unsynced bytes accumulated
+ *   hflush      hflush every batch, hsync only on close
+ */
+public class OutputSink implements Runnable {
+	public enum FlushPolicy {
+		TIME, BYTES, HFLUSH
+	}
+
+	// producers wait once this many bytes are queued for the writer
+	public static int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+	FSDataOutputStream outputStream;
+	FlushPolicy policy;
+	long policyArg;
+	Thread writer;
+
+	// state below is guarded by this
+	ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	boolean closed = false;
+	IOException error = null;
+
+	public OutputSink(FSDataOutputStream outputStream, String flushPolicy) {
+		this.outputStream = outputStream;
+		String[] sp = flushPolicy.split(":");
+		policy = FlushPolicy.valueOf(sp[0].toUpperCase());
+		if (policy == FlushPolicy.HFLUSH) {
+			policyArg = 0;
+		} else if (sp.length == 2) {
+			policyArg = Long.valueOf(sp[1]);
+		} else {
+			throw new IllegalArgumentException("flush policy " + flushPolicy + " needs an argument");
+		}
+		writer = new Thread(this, "output-sink");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		synchronized (this) {
+			while (pending.size() >= MAX_PENDING_BYTES && error == null && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+			if (closed) {
+				throw new IOException("output sink closed");
+			}
+			pending.write(b, off, len);
+			notifyAll();
+		}
+	}
+
+	public void write(String mesg) throws IOException {
+		byte[] data = mesg.getBytes(StandardCharsets.UTF_8);
+		write(data, 0, data.length);
+	}
+
+	/** write everything queued so far, hsync and close the output file */
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		synchronized (this) {
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	private void sync(boolean hard) throws IOException {
+		if (hard) {
+			outputStream.hsync();
+		} else {
+			outputStream.hflush();
+		}
+	}
+
+	public void run() {
+		long unsyncedBytes = 0;
+		long lastSyncMs = System.currentTimeMillis();
+		try {
+			while (true) {
+				byte[] batch;
+				boolean last;
+				synchronized (this) {
+					while (pending.size() == 0 && !closed) {
+						if (policy == FlushPolicy.TIME && unsyncedBytes > 0) {
+							long remaining = lastSyncMs + policyArg - System.currentTimeMillis();
+							if (remaining <= 0) {
+								break;
+							}
+							wait(remaining);
+						} else {
+							wait();
+						}
+					}
+					batch = pending.toByteArray();
+					pending.reset();
+					last = closed;
+					notifyAll();
+				}
+				if (batch.length > 0) {
+					outputStream.write(batch);
+					unsyncedBytes += batch.length;
+				}
+				if (last) {
+					outputStream.hsync();
+					outputStream.close();
+					return;
+				}
+				long now = System.currentTimeMillis();
+				if (policy == FlushPolicy.TIME) {
+					if (unsyncedBytes > 0 && now - lastSyncMs >= policyArg) {
+						sync(true);
+						unsyncedBytes = 0;
+						lastSyncMs = now;
+					}
+				} else if (policy == FlushPolicy.BYTES) {
+					if (unsyncedBytes >= policyArg) {
+						sync(true);
+						unsyncedBytes = 0;
+					} else if (batch.length > 0) {
+						sync(false);
+					}
+				} else if (batch.length > 0) {
+					sync(false);
+				}
+			}
+		} catch (Exception e) {
+			synchronized (this) {
+				error = e instanceof IOException ? (IOException) e : new IOException(e);
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package ai.fma.mpi_yarn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Wall clock timing of a job, written by the AM as JSON next to the output
+ * file:
+ *
+ *   {"phases": [{"name": ..., "startMs": ..., "endMs": ..., "ms": ...}, ...],
+ *    "containers": {"<containerId>": {"host": ..., "allocatedAt": ..., ...}},
+ *    ...}
+ *
+ * Phases are epoch millisecond intervals in lifecycle order; the client
+ * side phases travel to the AM in the job descriptor. Container events are
+ * epoch milliseconds too.
+ */
+public class PhaseTimer {
+	public static String SUFFIX = ".timing.json";
+
+	// state below is guarded by this
+	LinkedHashMap<String, long[]> phases = new LinkedHashMap<String, long[]>();
+	LinkedHashMap<String, Map<String, Object>> containers = new LinkedHashMap<String, Map<String, Object>>();
+	LinkedHashMap<String, Object> info = new LinkedHashMap<String, Object>();
+
+	public static Path reportPath(String outputPath) {
+		return new Path(outputPath + SUFFIX);
+	}
+
+	public synchronized void mark(String name, long startMs, long endMs) {
+		if (startMs > 0 && endMs > 0) {
+			phases.put(name, new long[] { startMs, endMs });
+		}
+	}
+
+	public synchronized void begin(String name) {
+		phases.put(name, new long[] { System.currentTimeMillis(), -1 });
+	}
+
+	public synchronized void end(String name) {
+		if (phases.containsKey(name)) {
+			phases.get(name)[1] = System.currentTimeMillis();
+		}
+	}
+
+	/** record an event or attribute of a container */
+	public synchronized void container(String containerId, String key, Object value) {
+		if (!containers.containsKey(containerId)) {
+			containers.put(containerId, new LinkedHashMap<String, Object>());
+		}
+		containers.get(containerId).put(key, value);
+	}
+
+	public synchronized void info(String key, Object value) {
+		info.put(key, value);
+	}
+
+	public synchronized void write(FileSystem dfs, Path path) throws IOException {
+		LinkedHashMap<String, Object> report = new LinkedHashMap<String, Object>(info);
+		ArrayList<Map<String, Object>> phaseList = new ArrayList<Map<String, Object>>();
+		for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+			long[] interval = entry.getValue();
+			if (interval[1] < 0) {
+				continue;
+			}
+			LinkedHashMap<String, Object> phase = new LinkedHashMap<String, Object>();
+			phase.put("name", entry.getKey());
+			phase.put("startMs", interval[0]);
+			phase.put("endMs", interval[1]);
+			phase.put("ms", interval[1] - interval[0]);
+			phaseList.add(phase);
+		}
+		report.put("phases", phaseList);
+		report.put("containers", containers);
+		FSDataOutputStream out = dfs.create(path, true);
+		try {
+			new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, report);
+		} finally {
+			out.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> read(FileSystem dfs, Path path) throws IOException {
+		FSDataInputStream in = dfs.open(path);
+		try {
+			return new ObjectMapper().readValue(in, Map.class);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** one line of phase durations, e.g. "staging 1.2s | amStart 3.4s | ... | total 18.0s" */
+	@SuppressWarnings("unchecked")
+	public static String summary(Map<String, Object> report) {
+		StringBuilder sb = new StringBuilder();
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for (Map<String, Object> phase : (List<Map<String, Object>>) report.get("phases")) {
+			long startMs = ((Number) phase.get("startMs")).longValue();
+			long endMs = ((Number) phase.get("endMs")).longValue();
+			first = Math.min(first, startMs);
+			last = Math.max(last, endMs);
+			sb.append(String.format("%s %.1fs | ", phase.get("name"), (endMs - startMs) / 1000.0));
+		}
+		if (first > last) {
+			return "no phases recorded";
+		}
+		sb.append(String.format("total %.1fs", (last - first) / 1000.0));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,397 @@
+package ai.fma.mpi_yarn;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Container side of -pmi, run by the ProxyAgent in place of hydra_pmi_proxy:
+ *
+ *   -pmi <first rank> <local ranks> <size> [-prepend] [-env NAME=VALUE]... -- <executable> <args>
+ *
+ * It starts the local ranks itself and serves them the PMI-1 wire protocol
+ * on a loopback port, handed over as PMI_PORT and PMI_ID. Init, maxes and
+ * the kvs name are answered locally; puts are held until the barrier, then
+ * sent to the PmiServer of the AM together with the one barrier_in of the
+ * container; gets that are not known locally are forwarded. The output of
+ * the ranks goes to the container log and, line by line and labelled
+ * "[rank] " with -prepend, to the job output. When a rank exits non-zero,
+ * the other local ranks are destroyed, the abort is sent to the AM and the
+ * proxy exits with the code of that rank.
+ */
+public class PmiProxy {
+	public static String FLAG = "-pmi";
+	public static int KVSNAME_MAX = 256;
+	public static int KEYLEN_MAX = 256;
+	public static int VALLEN_MAX = 1024;
+	// longer output lines are cut into pieces of this size
+	public static int MAX_LINE_BYTES = 64 * 1024;
+
+	int firstRank;
+	int numLocal;
+	int size;
+	boolean prepend = false;
+	LinkedHashMap<String, String> env = new LinkedHashMap<String, String>();
+	String[] command;
+	String kvsName = System.getenv(PmiServer.EnvKvsName);
+	ServerSocket local;
+	Socket upstream;
+	BufferedReader upstreamIn;
+	OutputStream upstreamOut;
+	Socket output;
+
+	// state below is guarded by this, which also serializes the upstream connection
+	HashMap<String, String> pending = new HashMap<String, String>();
+	HashMap<String, String> known = new HashMap<String, String>();
+	int inBarrier = 0;
+	int fences = 0;
+	// the AM connection failed in a barrier, the ranks still waiting give up
+	boolean broken = false;
+
+	// exits of the local ranks, guarded by exits rather than this, which a
+	// barrier holds while it waits for the AM
+	Object exits = new Object();
+	int exited = 0;
+	int failedRank = -1;
+	int failedCode = 0;
+	boolean abortSent = false;
+
+	PmiProxy(String[] args) {
+		int i = 1;
+		firstRank = Integer.valueOf(args[i++]);
+		numLocal = Integer.valueOf(args[i++]);
+		size = Integer.valueOf(args[i++]);
+		while (!args[i].equals("--")) {
+			if (args[i].equals("-prepend")) {
+				prepend = true;
+			} else if (args[i].equals("-env")) {
+				String entry = args[++i];
+				env.put(entry.substring(0, entry.indexOf('=')), entry.substring(entry.indexOf('=') + 1));
+			}
+			i++;
+		}
+		command = Arrays.copyOfRange(args, i + 1, args.length);
+	}
+
+	private Socket connect(String kind) throws IOException {
+		String[] address = System.getenv(PmiServer.EnvAddress).split(":");
+		Socket socket = new Socket(address[0], Integer.valueOf(address[1]));
+		socket.getOutputStream().write((System.getenv(PmiServer.EnvToken) + " " + kind + " "
+				+ System.getenv("CONTAINER_ID") + "\n").getBytes(StandardCharsets.UTF_8));
+		return socket;
+	}
+
+	private int runRanks() throws IOException, InterruptedException {
+		upstream = connect("pmi");
+		upstreamOut = upstream.getOutputStream();
+		upstreamIn = new BufferedReader(new InputStreamReader(upstream.getInputStream(), StandardCharsets.UTF_8));
+		output = connect("output");
+		local = new ServerSocket(0, numLocal, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread("pmi-local") {
+			public void run() {
+				acceptLocal();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		ArrayList<Process> processes = new ArrayList<Process>();
+		ArrayList<Thread> copiers = new ArrayList<Thread>();
+		for (int i = 0; i < numLocal; i++) {
+			int rank = firstRank + i;
+			ProcessBuilder pb = new ProcessBuilder(command);
+			pb.environment().putAll(env);
+			pb.environment().put("PMI_PORT", "127.0.0.1:" + local.getLocalPort());
+			pb.environment().put("PMI_ID", String.valueOf(rank));
+			pb.environment().put("PMI_RANK", String.valueOf(rank));
+			pb.environment().put("PMI_SIZE", String.valueOf(size));
+			pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
+			Process p = pb.start();
+			processes.add(p);
+			copiers.add(copy(rank, "stdout", p.getInputStream(), System.out));
+			copiers.add(copy(rank, "stderr", p.getErrorStream(), System.err));
+		}
+		for (int i = 0; i < numLocal; i++) {
+			watch(firstRank + i, processes.get(i));
+		}
+		int failed;
+		int exitCode;
+		boolean tell;
+		synchronized (exits) {
+			while (exited < numLocal && failedRank < 0) {
+				exits.wait();
+			}
+			failed = failedRank;
+			exitCode = failedCode;
+			tell = failed >= 0 && !abortSent;
+			abortSent |= tell;
+		}
+		if (failed >= 0) {
+			// the job is lost, do not leave the other ranks hanging in a collective
+			for (Process p : processes) {
+				p.destroy();
+			}
+			if (tell) {
+				try {
+					upstream("cmd=abort rank=" + failed + " exitcode=" + exitCode);
+				} catch (IOException e) {
+					System.err.println("abort of rank " + failed + " not sent: " + e.getMessage());
+				}
+			}
+		}
+		for (Process p : processes) {
+			p.waitFor();
+		}
+		for (Thread copier : copiers) {
+			copier.join();
+		}
+		local.close();
+		output.close();
+		upstream.close();
+		return exitCode;
+	}
+
+	private void watch(final int rank, final Process p) {
+		Thread waiter = new Thread("wait-" + rank) {
+			public void run() {
+				int code;
+				try {
+					code = p.waitFor();
+				} catch (InterruptedException e) {
+					return;
+				}
+				synchronized (exits) {
+					exited++;
+					if (code != 0 && failedRank < 0) {
+						failedRank = rank;
+						failedCode = code;
+					}
+					exits.notifyAll();
+				}
+			}
+		};
+		waiter.setDaemon(true);
+		waiter.start();
+	}
+
+	private Thread copy(final int rank, final String stream, final InputStream in, final PrintStream echo) {
+		Thread copier = new Thread("copy-" + rank + "-" + stream) {
+			public void run() {
+				try {
+					copyLines(rank, in, echo);
+				} catch (IOException e) {
+					System.err.println("output of rank " + rank + " lost: " + e.getMessage());
+				}
+			}
+		};
+		copier.start();
+		return copier;
+	}
+
+	private void copyLines(int rank, InputStream in, PrintStream echo) throws IOException {
+		byte[] label = prepend ? ("[" + rank + "] ").getBytes(StandardCharsets.UTF_8) : new byte[0];
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		line.write(label, 0, label.length);
+		byte[] buffer = new byte[StreamPump.BUFFER_BYTES];
+		int bytes;
+		while ((bytes = in.read(buffer, 0, buffer.length)) != -1) {
+			echo.write(buffer, 0, bytes);
+			for (int i = 0; i < bytes; i++) {
+				line.write(buffer[i]);
+				if (buffer[i] == '\n' || line.size() >= MAX_LINE_BYTES) {
+					if (buffer[i] != '\n') {
+						line.write('\n');
+					}
+					sendLine(line);
+					line.write(label, 0, label.length);
+				}
+			}
+		}
+		echo.flush();
+		if (line.size() > label.length) {
+			line.write('\n');
+			sendLine(line);
+		}
+	}
+
+	// whole lines only, so that the lines of the ranks do not interleave
+	private void sendLine(ByteArrayOutputStream line) throws IOException {
+		synchronized (output) {
+			line.writeTo(output.getOutputStream());
+		}
+		line.reset();
+	}
+
+	private void acceptLocal() {
+		while (!local.isClosed()) {
+			final Socket socket;
+			try {
+				socket = local.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread handler = new Thread("pmi-rank") {
+				public void run() {
+					try {
+						serveRank(socket);
+					} catch (IOException e) {
+						System.err.println("pmi: " + e.getMessage());
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			};
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private static void reply(OutputStream out, String message) throws IOException {
+		out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	// whole messages only; reads of the answers are serialized by this
+	private void upstream(String message) throws IOException {
+		synchronized (upstreamOut) {
+			reply(upstreamOut, message);
+		}
+	}
+
+	private void serveRank(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		OutputStream out = socket.getOutputStream();
+		int rank = -1;
+		String line;
+		while ((line = in.readLine()) != null) {
+			Map<String, String> fields = PmiServer.parse(line);
+			String cmd = fields.get("cmd");
+			if ("initack".equals(cmd)) {
+				rank = Integer.valueOf(fields.get("pmiid"));
+				reply(out, "cmd=initack\ncmd=set size=" + size + "\ncmd=set rank=" + rank + "\ncmd=set debug=0");
+			} else if ("init".equals(cmd)) {
+				reply(out, "cmd=response_to_init pmi_version=1 pmi_subversion=1 rc=0");
+			} else if ("get_maxes".equals(cmd)) {
+				reply(out, "cmd=maxes kvsname_max=" + KVSNAME_MAX + " keylen_max=" + KEYLEN_MAX + " vallen_max="
+						+ VALLEN_MAX);
+			} else if ("get_appnum".equals(cmd)) {
+				reply(out, "cmd=appnum appnum=0");
+			} else if ("get_my_kvsname".equals(cmd)) {
+				reply(out, "cmd=my_kvsname kvsname=" + kvsName);
+			} else if ("get_universe_size".equals(cmd)) {
+				reply(out, "cmd=universe_size size=" + size);
+			} else if ("put".equals(cmd)) {
+				synchronized (this) {
+					pending.put(fields.get("key"), fields.get("value"));
+					known.put(fields.get("key"), fields.get("value"));
+				}
+				reply(out, "cmd=put_result rc=0 msg=success");
+			} else if ("get".equals(cmd)) {
+				String value = get(fields.get("key"));
+				if (value == null) {
+					reply(out, "cmd=get_result rc=-1 msg=key_" + fields.get("key") + "_not_found");
+				} else {
+					reply(out, "cmd=get_result rc=0 msg=success value=" + value);
+				}
+			} else if ("barrier_in".equals(cmd)) {
+				barrier();
+				reply(out, "cmd=barrier_out");
+			} else if ("finalize".equals(cmd)) {
+				reply(out, "cmd=finalize_ack");
+			} else if ("abort".equals(cmd)) {
+				String exitCode = fields.containsKey("exitcode") ? fields.get("exitcode") : "1";
+				synchronized (exits) {
+					abortSent = true;
+				}
+				upstream("cmd=abort rank=" + rank + " exitcode=" + exitCode);
+			} else {
+				System.err.println("unsupported pmi command of rank " + rank + ": " + line);
+			}
+		}
+	}
+
+	private synchronized String get(String key) throws IOException {
+		if (known.containsKey(key)) {
+			return known.get(key);
+		}
+		if (broken) {
+			throw new IOException("AM connection lost");
+		}
+		upstream("cmd=get key=" + key);
+		String answer = upstreamIn.readLine();
+		if (answer == null) {
+			broken = true;
+			notifyAll();
+			throw new IOException("AM closed the connection during a get");
+		}
+		Map<String, String> fields = PmiServer.parse(answer);
+		if (!"0".equals(fields.get("rc"))) {
+			return null;
+		}
+		known.put(key, fields.get("value"));
+		return fields.get("value");
+	}
+
+	// the last local rank in sends the puts and one barrier_in for the container
+	private synchronized void barrier() throws IOException {
+		int fence = fences;
+		inBarrier++;
+		if (inBarrier == numLocal) {
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, String> entry : pending.entrySet()) {
+				sb.append("cmd=put key=" + entry.getKey() + " value=" + entry.getValue() + "\n");
+			}
+			sb.append("cmd=barrier_in");
+			String answer = null;
+			try {
+				upstream(sb.toString());
+				answer = upstreamIn.readLine();
+			} finally {
+				if (answer == null || !"barrier_out".equals(PmiServer.parse(answer).get("cmd"))) {
+					broken = true;
+					notifyAll();
+				}
+			}
+			if (broken) {
+				throw new IOException("AM left the barrier: " + answer);
+			}
+			pending.clear();
+			// values put elsewhere since are only seen through the AM
+			known.clear();
+			inBarrier = 0;
+			fences++;
+			notifyAll();
+			return;
+		}
+		while (fence == fences && !broken) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+		if (fence == fences) {
+			throw new IOException("AM left the barrier");
+		}
+	}
+
+	public static int run(String[] args) throws IOException, InterruptedException {
+		return new PmiProxy(args).runRanks();
+	}
+}
@@ -0,0 +1,299 @@
+package ai.fma.mpi_yarn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * AM side of -pmi: the PMI-1 key-value space of the job, served from the AM
+ * instead of mpiexec.hydra. The PmiProxy of every rank container answers its
+ * local ranks and holds one connection here, over which it sends
+ *
+ *   cmd=put key=<key> value=<value>     puts of its ranks since the last fence
+ *   cmd=barrier_in                      once all its ranks entered the barrier
+ *   cmd=get key=<key>                   answered by cmd=get_result rc=0|-1 value=<value>
+ *   cmd=abort rank=<rank> exitcode=<code>
+ *
+ * so a fence costs the AM one message per container rather than one per
+ * rank; every proxy gets cmd=barrier_out once the last one entered. A
+ * second connection per container carries the output of its ranks, which is
+ * pumped into the job output like the output of mpiexec.
+ *
+ * Every connection starts with "<token> pmi|output <containerId>\n".
+ */
+public class PmiServer implements Runnable {
+	public static String EnvAddress = "MPI_YARN_PMI";
+	public static String EnvToken = "MPI_YARN_PMI_TOKEN";
+	public static String EnvKvsName = "MPI_YARN_PMI_KVS";
+	// key MPICH reads the node of every rank from, for its shared memory paths
+	public static String PROCESS_MAPPING = "PMI_process_mapping";
+	// how long the output of exited containers may take to be accepted
+	public static int OUTPUT_TIMEOUT_MS = 5000;
+
+	public interface Listener {
+		/** called on the connection thread of the container of the rank */
+		void onAbort(int rank, int exitCode);
+	}
+
+	ServerSocket server;
+	String token = UUID.randomUUID().toString();
+	String kvsName = "kvs_" + token.substring(0, 8);
+	OutputSink sink;
+	RankOutput ranks;
+	Listener listener;
+	Thread acceptor;
+
+	// state below is guarded by this
+	HashMap<String, String> kvs = new HashMap<String, String>();
+	int numProxies = 0;
+	int inBarrier = 0;
+	int fences = 0;
+	long firstFenceMs = -1;
+	boolean closed = false;
+	HashSet<Socket> open = new HashSet<Socket>();
+	ArrayList<StreamPump> pumps = new ArrayList<StreamPump>();
+
+	public PmiServer(OutputSink sink, RankOutput ranks, Listener listener) {
+		this.sink = sink;
+		this.ranks = ranks;
+		this.listener = listener;
+	}
+
+	public void start() throws IOException {
+		server = new ServerSocket(0);
+		acceptor = new Thread(this, "pmi-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public String getKvsName() {
+		return kvsName;
+	}
+
+	/**
+	 * Expect one proxy per host entry, in rank order, each with
+	 * ranksPerProxy consecutive ranks; must be called before the proxies run.
+	 */
+	public synchronized void expect(List<String> proxyHosts, int ranksPerProxy) {
+		numProxies = proxyHosts.size();
+		kvs.put(PROCESS_MAPPING, processMapping(proxyHosts, ranksPerProxy));
+	}
+
+	/**
+	 * The node of every rank as hydra publishes it, "(vector,(<first
+	 * node>,<nodes>,<ranks per node>),...)" over consecutive blocks of ranks.
+	 */
+	static String processMapping(List<String> proxyHosts, int ranksPerProxy) {
+		LinkedHashMap<String, Integer> nodeIds = new LinkedHashMap<String, Integer>();
+		// {node, ranks} of every run of ranks on one node
+		ArrayList<int[]> blocks = new ArrayList<int[]>();
+		for (String host : proxyHosts) {
+			if (!nodeIds.containsKey(host)) {
+				nodeIds.put(host, nodeIds.size());
+			}
+			int node = nodeIds.get(host);
+			if (!blocks.isEmpty() && blocks.get(blocks.size() - 1)[0] == node) {
+				blocks.get(blocks.size() - 1)[1] += ranksPerProxy;
+			} else {
+				blocks.add(new int[] { node, ranksPerProxy });
+			}
+		}
+		StringBuilder sb = new StringBuilder("(vector");
+		int i = 0;
+		while (i < blocks.size()) {
+			int j = i + 1;
+			while (j < blocks.size() && blocks.get(j)[0] == blocks.get(j - 1)[0] + 1
+					&& blocks.get(j)[1] == blocks.get(i)[1]) {
+				j++;
+			}
+			sb.append(",(" + blocks.get(i)[0] + "," + (j - i) + "," + blocks.get(i)[1] + ")");
+			i = j;
+		}
+		return sb.append(")").toString();
+	}
+
+	public void run() {
+		while (!server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread handler = new Thread("pmi-connection") {
+				public void run() {
+					try {
+						serve(socket);
+					} catch (IOException e) {
+						System.out.println("pmi server: " + e.getMessage());
+					}
+				}
+			};
+			handler.setDaemon(true);
+			synchronized (this) {
+				open.add(socket);
+			}
+			handler.start();
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		socket.setSoTimeout(LaunchBinder.HELLO_TIMEOUT_MS);
+		InputStream in = socket.getInputStream();
+		String hello = StreamPump.readLine(in);
+		String[] sp = hello == null ? new String[0] : hello.split(" ");
+		if (sp.length != 3 || !sp[0].equals(token)) {
+			forget(socket);
+			return;
+		}
+		socket.setSoTimeout(0);
+		if (sp[1].equals("output")) {
+			// the pump owns the socket from now on, it ends with the proxy
+			StreamPump pump = new StreamPump("pmi-output-" + sp[2], in, System.out, sink, ranks);
+			synchronized (this) {
+				pumps.add(pump);
+				notifyAll();
+			}
+			pump.start();
+			return;
+		}
+		try {
+			serveProxy(in, socket.getOutputStream());
+		} finally {
+			forget(socket);
+		}
+	}
+
+	private void forget(Socket socket) throws IOException {
+		synchronized (this) {
+			open.remove(socket);
+		}
+		socket.close();
+	}
+
+	/** split "cmd=get key=k" into its fields, a value ends at the next space */
+	static Map<String, String> parse(String line) {
+		HashMap<String, String> fields = new HashMap<String, String>();
+		for (String field : line.trim().split(" +")) {
+			int eq = field.indexOf('=');
+			if (eq > 0) {
+				fields.put(field.substring(0, eq), field.substring(eq + 1));
+			}
+		}
+		return fields;
+	}
+
+	private void serveProxy(InputStream in, OutputStream out) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			Map<String, String> fields = parse(line);
+			String cmd = fields.get("cmd");
+			if ("put".equals(cmd)) {
+				synchronized (this) {
+					kvs.put(fields.get("key"), fields.get("value"));
+				}
+			} else if ("get".equals(cmd)) {
+				String value;
+				synchronized (this) {
+					value = kvs.get(fields.get("key"));
+				}
+				reply(out, value == null ? "cmd=get_result rc=-1" : "cmd=get_result rc=0 value=" + value);
+			} else if ("barrier_in".equals(cmd)) {
+				if (!barrier()) {
+					return;
+				}
+				reply(out, "cmd=barrier_out");
+			} else if ("abort".equals(cmd)) {
+				listener.onAbort(Integer.valueOf(fields.get("rank")), Integer.valueOf(fields.get("exitcode")));
+			} else {
+				throw new IOException("unexpected pmi command " + line);
+			}
+		}
+	}
+
+	private static void reply(OutputStream out, String message) throws IOException {
+		out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/** @return false if the server was closed before all proxies entered */
+	private synchronized boolean barrier() {
+		int fence = fences;
+		inBarrier++;
+		if (inBarrier == numProxies) {
+			inBarrier = 0;
+			fences++;
+			if (firstFenceMs < 0) {
+				firstFenceMs = System.currentTimeMillis();
+			}
+			notifyAll();
+			return true;
+		}
+		while (fence == fences && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return fence != fences;
+	}
+
+	/** time the first fence completed, which ends the wire-up of MPI_Init; -1 before */
+	public synchronized long getFirstFenceMs() {
+		return firstFenceMs;
+	}
+
+	public synchronized int getFences() {
+		return fences;
+	}
+
+	/** wait until the output of every proxy reached its end */
+	public void awaitOutput() throws IOException, InterruptedException {
+		ArrayList<StreamPump> started;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + OUTPUT_TIMEOUT_MS;
+			long remaining;
+			while (pumps.size() < numProxies && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				wait(remaining);
+			}
+			started = new ArrayList<StreamPump>(pumps);
+		}
+		for (StreamPump pump : started) {
+			pump.awaitDrained();
+		}
+	}
+
+	/** stop accepting and cut the proxies that are still connected */
+	public void close() throws IOException {
+		server.close();
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			for (Socket socket : open) {
+				socket.close();
+			}
+		}
+	}
+}
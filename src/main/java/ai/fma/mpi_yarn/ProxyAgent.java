@@ -0,0 +1,121 @@
+package ai.fma.mpi_yarn;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Placeholder process of a pipelined or session rank container. It waits for
+ * the LaunchBinder in the AM to send the hydra proxy command, then runs it in
+ * place. A pipelined agent exits with the exit code of the proxy; a session
+ * agent asks for the next command until the AM closes the binder. Given a
+ * command on its command line it runs just that, without a binder. With live
+ * logs the output of the proxy is also forwarded to the LogRelay of the AM.
+ * A command that starts with -pmi runs the ranks of the container through a
+ * PmiProxy in this JVM instead of hydra_pmi_proxy.
+ * It only needs the JDK, so the AM jar is all it needs on its classpath.
+ */
+public class ProxyAgent {
+	private static void receiveFile(DataInputStream in, String header) throws IOException {
+		String[] sp = header.split(" ");
+		File file = new File(sp[1]);
+		long length = Long.valueOf(sp[2]);
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		// copied in chunks, the agent heap is small
+		byte[] buffer = new byte[LaunchBinder.CHUNK_BYTES];
+		OutputStream out = new FileOutputStream(file);
+		try {
+			long remaining = length;
+			while (remaining > 0) {
+				int bytes = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (bytes == -1) {
+					throw new IOException(file + " ended " + remaining + " bytes early");
+				}
+				out.write(buffer, 0, bytes);
+				remaining -= bytes;
+			}
+		} finally {
+			out.close();
+		}
+		file.setExecutable(true);
+		System.out.println("received " + file + " (" + length + " bytes)");
+	}
+
+	/** @return the command bound to the container, null once the AM closed the binder */
+	private static String nextCommand(String[] address, String containerId) throws IOException {
+		Socket socket = new Socket(address[0], Integer.valueOf(address[1]));
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write((System.getenv(LaunchBinder.EnvToken) + " " + containerId + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			String line;
+			while ((line = StreamPump.readLine(in)) != null) {
+				if (line.startsWith("FILE ")) {
+					receiveFile(in, line);
+				} else if (line.startsWith("RUN ")) {
+					return line.substring("RUN ".length());
+				} else {
+					throw new IOException("unexpected binder message " + line);
+				}
+			}
+			return null;
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static int run(String[] command) throws IOException, InterruptedException {
+		if (command[0].equals(PmiProxy.FLAG)) {
+			return PmiProxy.run(command);
+		}
+		ProcessBuilder pb = new ProcessBuilder(command);
+		if (System.getenv(LogRelay.EnvAddress) == null) {
+			pb.inheritIO();
+			return pb.start().waitFor();
+		}
+		pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
+		Process p = pb.start();
+		LogForwarder stdout = new LogForwarder("stdout", p.getInputStream(), System.out);
+		LogForwarder stderr = new LogForwarder("stderr", p.getErrorStream(), System.err);
+		stdout.start();
+		stderr.start();
+		int exitCode = p.waitFor();
+		stdout.awaitDone();
+		stderr.awaitDone();
+		return exitCode;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			System.exit(run(args));
+		}
+		String[] address = System.getenv(LaunchBinder.EnvAddress).split(":");
+		String containerId = System.getenv("CONTAINER_ID");
+		boolean session = System.getenv(LaunchBinder.EnvSession) != null;
+		while (true) {
+			String command = nextCommand(address, containerId);
+			if (command == null) {
+				if (session) {
+					System.out.println("session of " + containerId + " closed");
+					System.exit(0);
+				}
+				System.err.println("AM closed the binder before binding " + containerId);
+				System.exit(1);
+			}
+			System.out.println("bound " + containerId + " to " + command);
+			int exitCode = run(command.split(" "));
+			if (!session) {
+				System.exit(exitCode);
+			}
+			System.out.println("command exited with " + exitCode);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package ai.fma.mpi_yarn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.Resource;
+
+/**
+ * Picks the fewest racks whose free resources can hold a job, from the node
+ * reports of the RM. A job needs numUnits units of unitSize containers, a
+ * unit has to fit on one node (a GROUP group; a single container otherwise).
+ * With onePerNode every unit needs a node of its own, as the nodes of GROUP
+ * and PACKED jobs do.
+ */
+public class RackPlanner {
+	private static int freeSlots(NodeReport node, Resource capability) {
+		Resource total = node.getCapability();
+		Resource used = node.getUsed();
+		int memory = total.getMemory() - (used == null ? 0 : used.getMemory());
+		int vcores = total.getVirtualCores() - (used == null ? 0 : used.getVirtualCores());
+		return Math.max(0, Math.min(memory / capability.getMemory(), vcores / capability.getVirtualCores()));
+	}
+
+	/** @return the racks to confine the job to, null when no rack set fits right now */
+	public static List<String> fewestRacks(List<NodeReport> nodes, Resource capability, int numUnits,
+			int unitSize, boolean onePerNode) {
+		final HashMap<String, Integer> units = new HashMap<String, Integer>();
+		for (NodeReport node : nodes) {
+			int nodeUnits = freeSlots(node, capability) / unitSize;
+			if (onePerNode) {
+				nodeUnits = Math.min(1, nodeUnits);
+			}
+			Integer rackUnits = units.get(node.getRackName());
+			units.put(node.getRackName(), (rackUnits == null ? 0 : rackUnits) + nodeUnits);
+		}
+		ArrayList<String> racks = new ArrayList<String>(units.keySet());
+		Collections.sort(racks, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return units.get(b) - units.get(a);
+			}
+		});
+		ArrayList<String> chosen = new ArrayList<String>();
+		int covered = 0;
+		for (String rack : racks) {
+			if (covered >= numUnits) {
+				break;
+			}
+			chosen.add(rack);
+			covered += units.get(rack);
+		}
+		if (covered < numUnits) {
+			return null;
+		}
+		return chosen;
+	}
+}
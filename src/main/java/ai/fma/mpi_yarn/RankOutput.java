@@ -0,0 +1,134 @@
+package ai.fma.mpi_yarn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Job output split by rank. The lines hydra labelled with "[rank] "
+ * (-prepend-rank) go, without the label, to rolling files
+ * <output>.ranks/rank-<rank>.<seq>, optionally compressed with a Hadoop
+ * codec. close() writes an index next to them:
+ *
+ *   {"codec": ..., "rollBytes": ...,
+ *    "ranks": {"<rank>": [{"file": ..., "offset": ..., "length": ...}, ...]}}
+ *
+ * Files of a rank are listed in order; offset is the position of their first
+ * byte in the uncompressed output of the rank and length their uncompressed
+ * size, so a reader seeks to a position by picking the file first.
+ */
+public class RankOutput {
+	public static String DIR_SUFFIX = ".ranks";
+	public static String INDEX = "index.json";
+
+	static class RankFile {
+		String name;
+		long offset;
+		long length = 0;
+		OutputStream out;
+	}
+
+	FileSystem dfs;
+	Path dir;
+	long rollBytes;
+	CompressionCodec codec = null;
+	// state below is guarded by this
+	TreeMap<Integer, ArrayList<RankFile>> files = new TreeMap<Integer, ArrayList<RankFile>>();
+	boolean closed = false;
+
+	public static Path dirPath(String outputPath) {
+		return new Path(outputPath + DIR_SUFFIX);
+	}
+
+	/** @param codecName a codec class or alias such as gzip, null to write plain files */
+	public RankOutput(FileSystem dfs, Configuration conf, String outputPath, long rollBytes, String codecName)
+			throws IOException {
+		this.dfs = dfs;
+		this.rollBytes = rollBytes;
+		dir = dirPath(outputPath);
+		if (codecName != null) {
+			codec = new CompressionCodecFactory(conf).getCodecByName(codecName);
+			if (codec == null) {
+				throw new IOException("unknown compression codec " + codecName);
+			}
+		}
+		dfs.mkdirs(dir);
+	}
+
+	private RankFile open(int rank, long offset, int seq) throws IOException {
+		RankFile file = new RankFile();
+		file.name = "rank-" + rank + "." + seq + (codec != null ? codec.getDefaultExtension() : "");
+		file.offset = offset;
+		FSDataOutputStream out = dfs.create(new Path(dir, file.name), true);
+		file.out = codec != null ? codec.createOutputStream(out) : out;
+		return file;
+	}
+
+	/** append output of a rank; files roll between writes, so whole lines stay in one file */
+	public synchronized void write(int rank, byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("rank output closed");
+		}
+		if (!files.containsKey(rank)) {
+			files.put(rank, new ArrayList<RankFile>());
+			files.get(rank).add(open(rank, 0, 0));
+		}
+		ArrayList<RankFile> rankFiles = files.get(rank);
+		RankFile current = rankFiles.get(rankFiles.size() - 1);
+		if (current.length > 0 && current.length + len > rollBytes) {
+			current.out.close();
+			current.out = null;
+			current = open(rank, current.offset + current.length, rankFiles.size());
+			rankFiles.add(current);
+		}
+		current.out.write(b, off, len);
+		current.length += len;
+	}
+
+	/** close the open file of every rank and write the index */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		LinkedHashMap<String, List<Map<String, Object>>> ranks = new LinkedHashMap<String, List<Map<String, Object>>>();
+		for (Map.Entry<Integer, ArrayList<RankFile>> entry : files.entrySet()) {
+			ArrayList<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+			for (RankFile file : entry.getValue()) {
+				if (file.out != null) {
+					file.out.close();
+					file.out = null;
+				}
+				LinkedHashMap<String, Object> item = new LinkedHashMap<String, Object>();
+				item.put("file", file.name);
+				item.put("offset", file.offset);
+				item.put("length", file.length);
+				list.add(item);
+			}
+			ranks.put(String.valueOf(entry.getKey()), list);
+		}
+		LinkedHashMap<String, Object> index = new LinkedHashMap<String, Object>();
+		index.put("codec", codec != null ? codec.getClass().getName() : null);
+		index.put("rollBytes", rollBytes);
+		index.put("ranks", ranks);
+		FSDataOutputStream out = dfs.create(new Path(dir, INDEX), true);
+		try {
+			new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, index);
+		} finally {
+			out.close();
+		}
+		System.out.println("rank output of " + files.size() + " ranks indexed in " + new Path(dir, INDEX));
+	}
+}
@@ -0,0 +1,88 @@
+package ai.fma.mpi_yarn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.util.RackResolver;
+
+/**
+ * Orders the acquired containers into the hydra host list, which fixes the
+ * rank order: ranks of one container are always contiguous.
+ *
+ *   PACKED      containers of a host together, hosts in allocation order
+ *   RACK        containers of a host together, hosts of a rack together
+ *   ROUNDROBIN  one container of every host in turn, hosts of a rack adjacent
+ *
+ * Racks come from the cluster topology mapping, the same one the RM uses.
+ */
+public class RankPlacement {
+	public enum Policy {
+		PACKED, RACK, ROUNDROBIN
+	}
+
+	Policy policy;
+
+	public RankPlacement(Policy policy, Configuration conf) {
+		this.policy = policy;
+		RackResolver.init(conf);
+	}
+
+	public static String rackOf(String host) {
+		return RackResolver.resolve(host).getNetworkLocation();
+	}
+
+	// rack -> hosts, both in name order
+	private TreeMap<String, ArrayList<String>> racks(Map<String, ArrayList<Container>> hostContainers) {
+		TreeMap<String, ArrayList<String>> racks = new TreeMap<String, ArrayList<String>>();
+		for (String host : hostContainers.keySet()) {
+			String rack = rackOf(host);
+			if (!racks.containsKey(rack)) {
+				racks.put(rack, new ArrayList<String>());
+			}
+			racks.get(rack).add(host);
+		}
+		for (ArrayList<String> hosts : racks.values()) {
+			Collections.sort(hosts);
+		}
+		return racks;
+	}
+
+	/** @return the containers in rank order */
+	public ArrayList<Container> order(Map<String, ArrayList<Container>> hostContainers) {
+		ArrayList<String> hosts = new ArrayList<String>();
+		if (policy == Policy.PACKED) {
+			hosts.addAll(hostContainers.keySet());
+		} else {
+			for (ArrayList<String> rackHosts : racks(hostContainers).values()) {
+				hosts.addAll(rackHosts);
+			}
+		}
+		ArrayList<Container> sequence = new ArrayList<Container>();
+		if (policy == Policy.ROUNDROBIN) {
+			for (int round = 0; sequence.size() < countContainers(hostContainers); round++) {
+				for (String host : hosts) {
+					if (round < hostContainers.get(host).size()) {
+						sequence.add(hostContainers.get(host).get(round));
+					}
+				}
+			}
+		} else {
+			for (String host : hosts) {
+				sequence.addAll(hostContainers.get(host));
+			}
+		}
+		return sequence;
+	}
+
+	private static int countContainers(Map<String, ArrayList<Container>> hostContainers) {
+		int count = 0;
+		for (ArrayList<Container> group : hostContainers.values()) {
+			count += group.size();
+		}
+		return count;
+	}
+}
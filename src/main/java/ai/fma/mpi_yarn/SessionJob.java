@@ -0,0 +1,53 @@
+package ai.fma.mpi_yarn;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+/**
+ * One MPI run submitted to a session AM: executable, arguments, environment
+ * and the number of ranks, encoded as a JobDescriptor.
+ */
+public class SessionJob {
+	static final int TAG_ID = 1;
+	static final int TAG_EXECUTABLE_PATH = 2;
+	static final int TAG_EXECUTABLE_NAME = 3;
+	static final int TAG_EXECUTABLE_ARGS = 4;
+	static final int TAG_ENV = 5;
+	static final int TAG_NUM_RANKS = 6;
+	static final int TAG_OUTPUT_PATH = 7;
+
+	public String id;
+	// HDFS path of the cached executable, null runs the executable localized with the pool
+	public String executablePath;
+	public String executableName;
+	public String executableArgs = "";
+	public LinkedHashMap<String, String> env = new LinkedHashMap<String, String>();
+	// -1 runs on the whole pool
+	public int numRanks = -1;
+	public String outputPath;
+
+	public static byte[] encode(SessionJob job) throws IOException {
+		JobDescriptor.Writer writer = new JobDescriptor.Writer();
+		writer.putString(TAG_ID, job.id);
+		writer.putString(TAG_EXECUTABLE_PATH, job.executablePath);
+		writer.putString(TAG_EXECUTABLE_NAME, job.executableName);
+		writer.putString(TAG_EXECUTABLE_ARGS, job.executableArgs);
+		writer.putStringMap(TAG_ENV, job.env);
+		writer.putInt(TAG_NUM_RANKS, job.numRanks);
+		writer.putString(TAG_OUTPUT_PATH, job.outputPath);
+		return writer.toByteArray();
+	}
+
+	public static SessionJob decode(byte[] data) throws IOException {
+		JobDescriptor.Reader reader = new JobDescriptor.Reader(data);
+		SessionJob job = new SessionJob();
+		job.id = reader.getString(TAG_ID, null);
+		job.executablePath = reader.getString(TAG_EXECUTABLE_PATH, null);
+		job.executableName = reader.getString(TAG_EXECUTABLE_NAME, null);
+		job.executableArgs = reader.getString(TAG_EXECUTABLE_ARGS, "");
+		job.env = reader.getStringMap(TAG_ENV);
+		job.numRanks = reader.getInt(TAG_NUM_RANKS, -1);
+		job.outputPath = reader.getString(TAG_OUTPUT_PATH, null);
+		return job;
+	}
+}
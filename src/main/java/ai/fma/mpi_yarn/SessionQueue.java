@@ -0,0 +1,117 @@
+package ai.fma.mpi_yarn;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * HDFS job queue of a session AM:
+ *
+ *   <prefix>/sessions/<appId>/queue/<jobId>   submitted SessionJobs, run in name order
+ *   <prefix>/sessions/<appId>/done/<jobId>    "<exit code>\n<diagnostics>" of finished jobs
+ *
+ * Both are written to a hidden temporary name and renamed into place, so the
+ * reader never observes a partial file.
+ */
+public class SessionQueue {
+	public static String SESSION_DIR = "sessions";
+	// the job the session AM was started with
+	public static String FIRST_JOB_ID = "0";
+
+	FileSystem dfs;
+	Path root;
+	Path queueDir;
+	Path doneDir;
+
+	public SessionQueue(FileSystem dfs, String hdfsPrefix, String appId) {
+		this.dfs = dfs;
+		this.root = new Path(hdfsPrefix + "/" + SESSION_DIR + "/" + appId);
+		this.queueDir = new Path(root, "queue");
+		this.doneDir = new Path(root, "done");
+	}
+
+	/** ids sort in submission order */
+	public static String newJobId() {
+		return String.format("%013d-%s", System.currentTimeMillis(), UUID.randomUUID().toString().substring(0, 8));
+	}
+
+	private void publish(Path dir, String name, byte[] data) throws IOException {
+		Path tmp = new Path(dir, "." + name + ".tmp");
+		FSDataOutputStream out = dfs.create(tmp, true);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		if (!dfs.rename(tmp, new Path(dir, name))) {
+			throw new IOException("failed to move " + tmp + " into " + dir);
+		}
+	}
+
+	private byte[] read(Path path) throws IOException {
+		byte[] data = new byte[(int) dfs.getFileStatus(path).getLen()];
+		FSDataInputStream in = dfs.open(path);
+		try {
+			in.readFully(0, data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	public void submit(SessionJob job) throws IOException {
+		dfs.mkdirs(queueDir);
+		publish(queueDir, job.id, SessionJob.encode(job));
+	}
+
+	/** take the oldest queued job, null when the queue is empty */
+	public SessionJob poll() throws IOException {
+		if (!dfs.exists(queueDir)) {
+			return null;
+		}
+		ArrayList<String> names = new ArrayList<String>();
+		for (FileStatus status : dfs.listStatus(queueDir)) {
+			if (!status.getPath().getName().startsWith(".")) {
+				names.add(status.getPath().getName());
+			}
+		}
+		if (names.isEmpty()) {
+			return null;
+		}
+		Collections.sort(names);
+		Path path = new Path(queueDir, names.get(0));
+		SessionJob job = SessionJob.decode(read(path));
+		dfs.delete(path, false);
+		return job;
+	}
+
+	public void complete(String jobId, int exitCode, String diagnostics) throws IOException {
+		dfs.mkdirs(doneDir);
+		publish(doneDir, jobId, (exitCode + "\n" + diagnostics).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public Path donePath(String jobId) {
+		return new Path(doneDir, jobId);
+	}
+
+	/** @return exit code and diagnostics of a finished job, null while it is queued or running */
+	public String[] readDone(String jobId) throws IOException {
+		Path path = donePath(jobId);
+		if (!dfs.exists(path)) {
+			return null;
+		}
+		return new String(read(path), StandardCharsets.UTF_8).split("\n", 2);
+	}
+
+	public void delete() throws IOException {
+		dfs.delete(root, true);
+	}
+}
@@ -0,0 +1,93 @@
+package ai.fma.mpi_yarn;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Packs the -sharedlist files (and optionally the executable) into a single
+ * tar.gz that the NodeManager localizes as one ARCHIVE resource and unpacks
+ * once per node into ./sofiles, which is already on LD_LIBRARY_PATH.
+ *
+ * The archive is keyed by the names and content hashes of its members and
+ * is built deterministically, so an unchanged set of files is neither
+ * re-packed nor re-uploaded.
+ */
+public class SharedObjectBundle {
+	// resource name, i.e. the directory the archive is unpacked into
+	public static String NAME = "sofiles";
+	public static String FILE_NAME = "sofiles.tar.gz";
+
+	public static String manifestKey(List<String> files) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		for (String path : files) {
+			File file = new File(path);
+			lines.add(file.getName() + " " + (file.canExecute() ? "x" : "-") + " " + ArtifactCache.hash(path));
+		}
+		Collections.sort(lines);
+		StringBuilder manifest = new StringBuilder();
+		for (String line : lines) {
+			manifest.append(line).append("\n");
+		}
+		return DigestUtils.sha256Hex(manifest.toString());
+	}
+
+	public static void pack(List<String> files, File archive) throws IOException {
+		ArrayList<File> members = new ArrayList<File>();
+		for (String path : files) {
+			members.add(new File(path));
+		}
+		Collections.sort(members);
+		OutputStream out = new GzipCompressorOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+		try {
+			tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+			for (File member : members) {
+				// no timestamps or owners, identical inputs give identical bytes
+				TarArchiveEntry entry = new TarArchiveEntry(member, member.getName());
+				entry.setModTime(0);
+				entry.setIds(0, 0);
+				entry.setNames("", "");
+				entry.setMode(member.canExecute() ? 0100755 : 0100644);
+				tar.putArchiveEntry(entry);
+				InputStream in = new FileInputStream(member);
+				try {
+					IOUtils.copy(in, tar);
+				} finally {
+					in.close();
+				}
+				tar.closeArchiveEntry();
+			}
+		} finally {
+			tar.close();
+		}
+	}
+
+	public static ArtifactCache.Artifact stage(ArtifactCache cache, List<String> files) throws IOException {
+		String key = manifestKey(files);
+		ArtifactCache.Artifact artifact = cache.find(key, FILE_NAME);
+		if (artifact != null) {
+			return artifact;
+		}
+		File archive = File.createTempFile("mpi_yarn_sofiles", ".tar.gz");
+		try {
+			pack(files, archive);
+			return cache.stage(key, FILE_NAME, archive.getPath());
+		} finally {
+			archive.delete();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package ai.fma.mpi_yarn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Drains one mpiexec stream continuously on its own thread, passing the raw
+ * bytes to the AM log and to the output sink, whose bounded queue applies
+ * back-pressure only when HDFS falls far behind. With a RankOutput, lines
+ * labelled "[rank] " by hydra go to the file of their rank instead; longer
+ * lines are cut, and their pieces follow the first one.
+ */
+public class StreamPump extends Thread {
+	public static int BUFFER_BYTES = 64 * 1024;
+	// longer lines are cut into pieces of this size when splitting by rank
+	public static int MAX_LINE_BYTES = 64 * 1024;
+	private static final int SINK = -1;
+	private static final int UNLABELLED = -2;
+
+	InputStream in;
+	PrintStream echo;
+	OutputSink sink;
+	RankOutput ranks;
+	// partial line carried over between reads when splitting by rank
+	ByteArrayOutputStream line = new ByteArrayOutputStream();
+	// where the rest of a cut line goes, the rank or SINK; UNLABELLED otherwise
+	int cutFrom = UNLABELLED;
+	IOException error = null;
+
+	public StreamPump(String name, InputStream in, PrintStream echo, OutputSink sink) {
+		this(name, in, echo, sink, null);
+	}
+
+	public StreamPump(String name, InputStream in, PrintStream echo, OutputSink sink, RankOutput ranks) {
+		super("pump-" + name);
+		setDaemon(true);
+		this.in = in;
+		this.echo = echo;
+		this.sink = sink;
+		this.ranks = ranks;
+	}
+
+	/**
+	 * Read one line without read-ahead so that nothing after it is lost
+	 * before the pump takes over the stream; null on end of stream.
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			line.write(b);
+		}
+		if (b == -1 && line.size() == 0) {
+			return null;
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	public void run() {
+		byte[] buffer = new byte[BUFFER_BYTES];
+		try {
+			int bytes;
+			while ((bytes = in.read(buffer, 0, buffer.length)) != -1) {
+				echo.write(buffer, 0, bytes);
+				if (ranks == null) {
+					sink.write(buffer, 0, bytes);
+					continue;
+				}
+				int start = 0;
+				for (int i = 0; i < bytes; i++) {
+					boolean cut = buffer[i] != '\n' && line.size() + i + 1 - start >= MAX_LINE_BYTES;
+					if (buffer[i] == '\n' || cut) {
+						line.write(buffer, start, i + 1 - start);
+						if (cut) {
+							line.write('\n');
+						}
+						route(line.toByteArray(), cut);
+						line.reset();
+						start = i + 1;
+					}
+				}
+				line.write(buffer, start, bytes - start);
+			}
+			if (ranks != null && line.size() > 0) {
+				route(line.toByteArray(), false);
+			}
+		} catch (IOException e) {
+			error = e;
+		}
+	}
+
+	// "[rank] text" goes to the rank, anything else (hydra itself) to the sink
+	private void route(byte[] data, boolean cut) throws IOException {
+		int target = cutFrom;
+		int offset = 0;
+		if (target == UNLABELLED) {
+			int i = 1;
+			int rank = 0;
+			while (data.length > 0 && data[0] == '[' && i < data.length && data[i] >= '0' && data[i] <= '9') {
+				rank = rank * 10 + data[i] - '0';
+				i++;
+			}
+			if (i > 1 && i + 1 < data.length && data[i] == ']' && data[i + 1] == ' ') {
+				target = rank;
+				offset = i + 2;
+			} else {
+				target = SINK;
+			}
+		}
+		if (target == SINK) {
+			sink.write(data, 0, data.length);
+		} else {
+			ranks.write(target, data, offset, data.length - offset);
+		}
+		cutFrom = cut ? target : UNLABELLED;
+	}
+
+	/** wait until the stream reached its end */
+	public void awaitDrained() throws IOException, InterruptedException {
+		join();
+		if (error != null) {
+			throw error;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package ai.fma.mpi_yarn;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.yarn.client.api.YarnClient;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+
+/**
+ * Long-running mpi-run on the submitting host. It keeps one FileSystem, one
+ * started YarnClient and the artifact digests warm, so a submission costs
+ * neither a JVM nor a Hadoop client startup:
+ *
+ *   hadoop jar mpi-yarn-1.0.0.jar ai.fma.mpi_yarn.SubmitDaemon &
+ *
+ * The daemon listens on the loopback interface and writes "<port> <token>"
+ * to ~/.mpi-yarn/daemon, readable by the owner only. A request is a list of
+ * lines:
+ *
+ *   <token>
+ *   <n>, then n lines NAME=VALUE    environment of the caller
+ *   <m>, then m lines               mpi-run arguments, with absolute paths
+ *
+ * The answer is a sequence of frames, each a big-endian int length and that
+ * many bytes of output, ended by length -1 and the int exit code. Length -2
+ * means the jar of the daemon was rebuilt and the caller runs mpi-run
+ * itself: the daemon stops accepting and exits once the requests in flight
+ * are answered. Each request runs on its own thread; when the caller goes
+ * away, its job keeps running in YARN.
+ */
+public class SubmitDaemon {
+	public static String DAEMON_FILE = ".mpi-yarn/daemon";
+	public static int FRAME_EXIT = -1;
+	public static int FRAME_STALE = -2;
+
+	Configuration conf = new YarnConfiguration();
+	FileSystem dfs;
+	YarnClient yarnClient;
+	ServerSocket server;
+	String token = UUID.randomUUID().toString();
+	File daemonFile = new File(System.getProperty("user.home"), DAEMON_FILE);
+	File jar;
+	long jarModified;
+	// requests being handled, guarded by this
+	int inFlight = 0;
+
+	public SubmitDaemon() throws IOException {
+		dfs = FileSystem.get(conf);
+		yarnClient = YarnClient.createYarnClient();
+		yarnClient.init(conf);
+		yarnClient.start();
+		jar = new File(SubmitDaemon.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+		jarModified = jar.lastModified();
+	}
+
+	private void log(String str) {
+		System.out.println("[DAEMON] " + str);
+	}
+
+	public void serve() throws IOException, InterruptedException {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		publish();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				daemonFile.delete();
+			}
+		});
+		log("listening on port " + server.getLocalPort() + ", address in " + daemonFile);
+		int requests = 0;
+		while (true) {
+			final Socket socket = server.accept();
+			final boolean stale = jar.lastModified() != jarModified;
+			synchronized (this) {
+				inFlight++;
+			}
+			Thread handler = new Thread("submit-" + requests++) {
+				public void run() {
+					try {
+						handle(socket, stale);
+					} catch (IOException e) {
+						log("request failed: " + e.getMessage());
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+						}
+						synchronized (SubmitDaemon.this) {
+							inFlight--;
+							SubmitDaemon.this.notifyAll();
+						}
+					}
+				}
+			};
+			handler.setDaemon(true);
+			handler.start();
+			if (stale) {
+				// later callers find no daemon and run mpi-run themselves
+				log("jar " + jar + " changed, exiting once the requests in flight are answered");
+				server.close();
+				daemonFile.delete();
+				synchronized (this) {
+					while (inFlight > 0) {
+						wait();
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	// written aside and renamed, so a caller never reads a partial address
+	private void publish() throws IOException {
+		File dir = daemonFile.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+		File tmp = new File(dir, daemonFile.getName() + ".tmp");
+		tmp.delete();
+		tmp.createNewFile();
+		tmp.setReadable(false, false);
+		tmp.setWritable(false, false);
+		tmp.setReadable(true, true);
+		tmp.setWritable(true, true);
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write((server.getLocalPort() + " " + token + "\n").getBytes(StandardCharsets.UTF_8));
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(daemonFile)) {
+			throw new IOException("cannot move " + tmp + " to " + daemonFile);
+		}
+	}
+
+	private void handle(Socket socket, boolean stale) throws IOException {
+		socket.setSoTimeout(LaunchBinder.HELLO_TIMEOUT_MS);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		if (!token.equals(in.readLine())) {
+			return;
+		}
+		long clientStartMs = System.currentTimeMillis();
+		// the caller's variables take precedence over those of the daemon
+		HashMap<String, String> env = new HashMap<String, String>(System.getenv());
+		int numEnv = Integer.valueOf(in.readLine());
+		for (int i = 0; i < numEnv; i++) {
+			String entry = in.readLine();
+			int eq = entry.indexOf('=');
+			if (eq > 0) {
+				env.put(entry.substring(0, eq), entry.substring(eq + 1));
+			}
+		}
+		String[] args = new String[Integer.valueOf(in.readLine())];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = in.readLine();
+		}
+		socket.setSoTimeout(0);
+
+		DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		if (stale) {
+			frames.writeInt(FRAME_STALE);
+			frames.flush();
+			return;
+		}
+		PrintStream out = new PrintStream(new FrameOutputStream(frames), true, "UTF-8");
+		int exitCode = run(args, env, out, clientStartMs);
+		out.flush();
+		frames.writeInt(FRAME_EXIT);
+		frames.writeInt(exitCode);
+		frames.flush();
+	}
+
+	private int run(String[] args, Map<String, String> env, PrintStream out, long clientStartMs) {
+		Client client = new Client(conf, dfs);
+		client.out = out;
+		client.env = env;
+		try {
+			client.parse(args);
+			client.follow(yarnClient, clientStartMs);
+			return client.exitCode;
+		} catch (Exception e) {
+			out.println(e.getMessage());
+			if (!(e instanceof IllegalArgumentException)) {
+				log("mpi-run failed: " + e);
+			}
+			return 1;
+		}
+	}
+
+	// every write of the PrintStream becomes one frame
+	static class FrameOutputStream extends OutputStream {
+		DataOutputStream frames;
+
+		FrameOutputStream(DataOutputStream frames) {
+			this.frames = frames;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			frames.writeInt(len);
+			frames.write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			frames.flush();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new SubmitDaemon().serve();
+		System.exit(0);
+	}
+}